@@ -0,0 +1,69 @@
+package com.sufi.pancardresizer.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.sufi.pancardresizer.config.AppProperties;
+import com.sufi.pancardresizer.dto.CacheStatsResponse;
+import com.sufi.pancardresizer.exception.AppException;
+import com.sufi.pancardresizer.model.StoredFile;
+import com.sufi.pancardresizer.service.StorageService;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.time.Duration;
+
+@Component
+public class DecodedImageCache {
+    private static final Duration IDLE_EXPIRY = Duration.ofMinutes(5);
+
+    private final Cache<String, BufferedImage> cache;
+
+    public DecodedImageCache(AppProperties properties, StorageService storageService) {
+        this.cache = Caffeine.newBuilder()
+            .maximumWeight(properties.getCache().getDecodedMaxBytes())
+            .weigher((String key, BufferedImage image) -> weigh(image))
+            .expireAfterAccess(IDLE_EXPIRY)
+            .recordStats()
+            .build();
+        storageService.addContentRemovalListener(cache::invalidate);
+    }
+
+    public BufferedImage get(StoredFile stored) {
+        return cache.get(stored.getContentHash(), key -> decode(stored));
+    }
+
+    public BufferedImage getIfPresent(StoredFile stored) {
+        return cache.getIfPresent(stored.getContentHash());
+    }
+
+    public CacheStatsResponse stats() {
+        CacheStats stats = cache.stats();
+        long weighted = cache.policy().eviction()
+            .map(eviction -> eviction.weightedSize().orElse(0L))
+            .orElse(0L);
+        return new CacheStatsResponse("decodedImages", stats.hitCount(), stats.missCount(),
+            stats.evictionCount(), cache.estimatedSize(), weighted);
+    }
+
+    private BufferedImage decode(StoredFile stored) {
+        try {
+            BufferedImage img = ImageIO.read(stored.getPath().toFile());
+            if (img == null) {
+                throw new AppException("Invalid image file", "invalid_image");
+            }
+            return img;
+        } catch (IOException e) {
+            throw new AppException("Failed to read image", "image_read_failed");
+        }
+    }
+
+    static int weigh(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        long bytes = (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+}
@@ -0,0 +1,293 @@
+package com.sufi.pancardresizer.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.sufi.pancardresizer.config.AppProperties;
+import com.sufi.pancardresizer.dto.CacheStatsResponse;
+import com.sufi.pancardresizer.exception.AppException;
+import com.sufi.pancardresizer.model.PdfInfo;
+import com.sufi.pancardresizer.model.StoredFile;
+import com.sufi.pancardresizer.service.StorageService;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.RandomAccessReadMemoryMappedFile;
+import org.apache.pdfbox.io.RandomAccessStreamCache;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+@Component
+public class PdfDocumentCache {
+    private static final Duration IDLE_EXPIRY = Duration.ofMinutes(5);
+    private static final int INFO_MAX_ENTRIES = 512;
+    // heap kept by a parsed document after rendering every page, measured with PDFBox 3.0.2: a fixed part
+    // plus about a kilobyte per object; stream data stays in the memory-mapped file
+    private static final int PARSED_BASE_BYTES = 64 * 1024;
+    private static final int PARSED_OBJECT_BYTES = 1100;
+
+    private final Cache<String, PdfInfo> info;
+    private final Cache<String, IdleDocuments> documents;
+    private final RandomAccessStreamCache.StreamCacheCreateFunction scratch;
+    private final Path scratchDir;
+    private final int maxIdlePerFile;
+
+    public PdfDocumentCache(AppProperties properties, StorageService storageService, ForkJoinPool imageWorkerPool) throws IOException {
+        this.info = Caffeine.newBuilder()
+            .maximumSize(INFO_MAX_ENTRIES)
+            .recordStats()
+            .build();
+        this.documents = Caffeine.newBuilder()
+            .maximumWeight(properties.getCache().getPdfMaxBytes())
+            .weigher((String key, IdleDocuments idle) -> idle.weight())
+            .expireAfterAccess(IDLE_EXPIRY)
+            .removalListener((String key, IdleDocuments idle, RemovalCause cause) -> {
+                if (idle != null) {
+                    idle.close();
+                }
+            })
+            .recordStats()
+            .build();
+        this.maxIdlePerFile = Math.max(1, imageWorkerPool.getParallelism());
+
+        // PDF streams beyond the in-memory allowance spill to scratch files instead of the heap
+        this.scratchDir = Paths.get(properties.getTempDir(), "pdf-scratch");
+        Files.createDirectories(scratchDir);
+        long memoryBytes = properties.getPdf().getScratchMemoryBytes();
+        MemoryUsageSetting setting = memoryBytes > 0
+            ? MemoryUsageSetting.setupMixed(memoryBytes)
+            : MemoryUsageSetting.setupTempFileOnly();
+        this.scratch = setting.setTempDir(scratchDir.toFile()).streamCache;
+
+        storageService.addStoredListener(this::warm);
+        storageService.addContentRemovalListener(this::invalidate);
+    }
+
+    public PdfInfo info(StoredFile stored) {
+        return info.get(stored.getContentHash(), key -> parse(stored));
+    }
+
+    // a parsed document is only ever used by one thread; hand it back with release() when done
+    public PDDocument borrow(StoredFile stored) throws IOException {
+        String key = stored.getContentHash();
+        IdleDocuments idle = documents.getIfPresent(key);
+        PDDocument doc = idle == null ? null : idle.poll();
+        if (doc == null) {
+            return load(stored);
+        }
+        reweigh(key, idle);
+        return doc;
+    }
+
+    public void release(StoredFile stored, PDDocument doc) {
+        if (Files.exists(stored.getPath())) {
+            String key = stored.getContentHash();
+            IdleDocuments idle = documents.asMap().computeIfAbsent(key, ignored -> new IdleDocuments(weigh(doc)));
+            if (idle.offer(doc, maxIdlePerFile)) {
+                reweigh(key, idle);
+                return;
+            }
+        }
+        closeQuietly(doc);
+    }
+
+    // size of the page as a standalone copy; measured on first render instead of at upload and kept with the page info
+    public long vectorBytes(StoredFile stored, PDDocument doc, int pageIndex) throws IOException {
+        PdfInfo.Page page = info(stored).getPage(pageIndex);
+        long bytes = page.getVectorBytes();
+        if (bytes < 0) {
+            bytes = measureVectorBytes(doc.getPage(pageIndex));
+            page.setVectorBytes(bytes);
+        }
+        return bytes;
+    }
+
+    public PDDocument createDocument() {
+        return new PDDocument(scratch);
+    }
+
+    public Path getScratchDir() {
+        return scratchDir;
+    }
+
+    public void invalidate(String contentHash) {
+        info.invalidate(contentHash);
+        documents.invalidate(contentHash);
+    }
+
+    public List<CacheStatsResponse> stats() {
+        List<CacheStatsResponse> result = new ArrayList<>();
+        CacheStats infoStats = info.stats();
+        result.add(new CacheStatsResponse("pdfInfo", infoStats.hitCount(), infoStats.missCount(),
+            infoStats.evictionCount(), info.estimatedSize(), 0));
+        CacheStats documentStats = documents.stats();
+        long weighted = documents.policy().eviction()
+            .map(eviction -> eviction.weightedSize().orElse(0L))
+            .orElse(0L);
+        result.add(new CacheStatsResponse("pdfDocuments", documentStats.hitCount(), documentStats.missCount(),
+            documentStats.evictionCount(), documents.estimatedSize(), weighted));
+        return result;
+    }
+
+    private void warm(StoredFile stored) {
+        if (!"pdf".equals(stored.getFormat())) {
+            return;
+        }
+        try {
+            info(stored);
+        } catch (AppException ignored) {
+            // a broken PDF is reported when it is rendered
+        }
+    }
+
+    private PDDocument load(StoredFile stored) throws IOException {
+        // memory-mapped and lazily parsed: rendering one page only touches the objects it needs
+        RandomAccessRead source = new RandomAccessReadMemoryMappedFile(stored.getPath());
+        try {
+            return Loader.loadPDF(source, scratch);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    private PdfInfo parse(StoredFile stored) {
+        PDDocument doc = null;
+        try {
+            doc = borrow(stored);
+            List<PdfInfo.Page> pages = new ArrayList<>();
+            for (PDPage page : doc.getPages()) {
+                pages.add(describe(page));
+            }
+            PdfInfo result = new PdfInfo(pages);
+            release(stored, doc);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            if (doc != null) {
+                closeQuietly(doc);
+            }
+            throw new AppException("Invalid PDF file", "invalid_pdf");
+        }
+    }
+
+    private PdfInfo.Page describe(PDPage page) throws IOException {
+        PDRectangle box = page.getCropBox();
+        long contentBytes = 0;
+        Iterator<PDStream> streams = page.getContentStreams();
+        while (streams.hasNext()) {
+            contentBytes += streams.next().getCOSObject().getLength();
+        }
+
+        int imageCount = 0;
+        long imagePixels = 0;
+        PDResources resources = page.getResources();
+        if (resources != null) {
+            for (COSName name : resources.getXObjectNames()) {
+                if (resources.isImageXObject(name)) {
+                    PDXObject xObject = resources.getXObject(name);
+                    if (xObject instanceof PDImageXObject image) {
+                        imageCount++;
+                        imagePixels += (long) image.getWidth() * image.getHeight();
+                    }
+                }
+            }
+        }
+        return new PdfInfo.Page(box.getWidth(), box.getHeight(), page.getRotation(), contentBytes,
+            imageCount, imagePixels);
+    }
+
+    private long measureVectorBytes(PDPage page) throws IOException {
+        try (PDDocument probe = createDocument()) {
+            probe.importPage(page);
+            ByteCounter counter = new ByteCounter();
+            probe.save(counter);
+            return counter.count;
+        }
+    }
+
+    // the weight follows the number of idle documents, so the entry is put back after every change to be re-weighed
+    private void reweigh(String key, IdleDocuments idle) {
+        documents.asMap().replace(key, idle, idle);
+    }
+
+    static int weigh(PDDocument doc) {
+        long objects = doc.getDocument().getXrefTable().size();
+        return (int) Math.min(Integer.MAX_VALUE, PARSED_BASE_BYTES + objects * PARSED_OBJECT_BYTES);
+    }
+
+    private static void closeQuietly(PDDocument doc) {
+        try {
+            doc.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class IdleDocuments {
+        private final Deque<PDDocument> docs = new ArrayDeque<>();
+        private final int documentWeight;
+        private boolean closed;
+
+        private IdleDocuments(int documentWeight) {
+            this.documentWeight = documentWeight;
+        }
+
+        private synchronized int weight() {
+            return (int) Math.min(Integer.MAX_VALUE, (long) documentWeight * docs.size());
+        }
+
+        private synchronized PDDocument poll() {
+            return docs.poll();
+        }
+
+        private synchronized boolean offer(PDDocument doc, int max) {
+            if (closed || docs.size() >= max) {
+                return false;
+            }
+            docs.push(doc);
+            return true;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            for (PDDocument doc : docs) {
+                closeQuietly(doc);
+            }
+            docs.clear();
+        }
+    }
+
+    private static final class ByteCounter extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
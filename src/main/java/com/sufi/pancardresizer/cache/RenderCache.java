@@ -0,0 +1,145 @@
+package com.sufi.pancardresizer.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.sufi.pancardresizer.config.AppProperties;
+import com.sufi.pancardresizer.dto.CacheStatsResponse;
+import com.sufi.pancardresizer.service.StorageService;
+import com.sufi.pancardresizer.util.SingleFlight;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+@Component
+public class RenderCache {
+    private static final Duration IDLE_EXPIRY = Duration.ofMinutes(10);
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    public enum Region {
+        PREVIEW("preview"),
+        PDF_PREVIEW("pdfPreview"),
+        KB_SIZE("kbSize");
+
+        private final String statsName;
+
+        Region(String statsName) {
+            this.statsName = statsName;
+        }
+    }
+
+    private final Cache<Key, Object> cache;
+    private final SingleFlight<Key, Object> loads = new SingleFlight<>();
+    private final AtomicLongArray hits = new AtomicLongArray(Region.values().length);
+    private final AtomicLongArray misses = new AtomicLongArray(Region.values().length);
+    private final AtomicLongArray evictions = new AtomicLongArray(Region.values().length);
+
+    public RenderCache(AppProperties properties, StorageService storageService) {
+        this.cache = Caffeine.newBuilder()
+            .maximumWeight(properties.getCache().getRenderMaxBytes())
+            .weigher((Key key, Object value) -> weigh(value))
+            .expireAfterAccess(IDLE_EXPIRY)
+            .removalListener((Key key, Object value, RemovalCause cause) -> {
+                if (key != null && cause.wasEvicted()) {
+                    evictions.incrementAndGet(key.region.ordinal());
+                }
+            })
+            .build();
+        storageService.addContentRemovalListener(this::invalidate);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <V> V getIfPresent(Region region, String contentHash, String key) {
+        Object value = cache.getIfPresent(new Key(region, contentHash, key));
+        if (value == null) {
+            misses.incrementAndGet(region.ordinal());
+            return null;
+        }
+        hits.incrementAndGet(region.ordinal());
+        return (V) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <V> V get(Region region, String contentHash, String key, Supplier<V> loader) {
+        V value = getIfPresent(region, contentHash, key);
+        if (value != null) {
+            return value;
+        }
+        Key cacheKey = new Key(region, contentHash, key);
+        return (V) loads.execute(cacheKey, () -> {
+            Object cached = cache.getIfPresent(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+            V loaded = loader.get();
+            cache.put(cacheKey, loaded);
+            return loaded;
+        });
+    }
+
+    public void put(Region region, String contentHash, String key, Object value) {
+        cache.put(new Key(region, contentHash, key), value);
+    }
+
+    public void invalidate(String contentHash) {
+        cache.asMap().keySet().removeIf(key -> key.contentHash.equals(contentHash));
+    }
+
+    public List<CacheStatsResponse> stats() {
+        long[] entries = new long[Region.values().length];
+        long[] bytes = new long[Region.values().length];
+        for (Map.Entry<Key, Object> entry : cache.asMap().entrySet()) {
+            int index = entry.getKey().region.ordinal();
+            entries[index]++;
+            bytes[index] += weigh(entry.getValue());
+        }
+        List<CacheStatsResponse> result = new ArrayList<>();
+        for (Region region : Region.values()) {
+            int index = region.ordinal();
+            result.add(new CacheStatsResponse(region.statsName, hits.get(index), misses.get(index),
+                evictions.get(index), entries[index], bytes[index]));
+        }
+        return result;
+    }
+
+    private static int weigh(Object value) {
+        if (value instanceof byte[] data) {
+            return data.length + ENTRY_OVERHEAD_BYTES;
+        }
+        return ENTRY_OVERHEAD_BYTES;
+    }
+
+    private static final class Key {
+        private final Region region;
+        private final String contentHash;
+        private final String key;
+
+        private Key(Region region, String contentHash, String key) {
+            this.region = region;
+            this.contentHash = contentHash;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key other)) {
+                return false;
+            }
+            return region == other.region && contentHash.equals(other.contentHash) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(region, contentHash, key);
+        }
+    }
+}
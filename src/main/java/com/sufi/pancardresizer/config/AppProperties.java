@@ -8,10 +8,15 @@ public class AppProperties {
     private int cleanupMinutes;
     private String corsAllowedOrigins;
     private Upload upload = new Upload();
+    private Cache cache = new Cache();
+    private Workers workers = new Workers();
+    private Jpeg jpeg = new Jpeg();
+    private Pdf pdf = new Pdf();
 
     public static class Upload {
         private long maxPerFileBytes;
         private long maxTotalBytes;
+        private long maxImagePixels;
 
         public long getMaxPerFileBytes() {
             return maxPerFileBytes;
@@ -28,6 +33,98 @@ public class AppProperties {
         public void setMaxTotalBytes(long maxTotalBytes) {
             this.maxTotalBytes = maxTotalBytes;
         }
+
+        public long getMaxImagePixels() {
+            return maxImagePixels;
+        }
+
+        public void setMaxImagePixels(long maxImagePixels) {
+            this.maxImagePixels = maxImagePixels;
+        }
+    }
+
+    public static class Cache {
+        private long decodedMaxBytes;
+        private long renderMaxBytes;
+        private long pdfMaxBytes;
+
+        public long getDecodedMaxBytes() {
+            return decodedMaxBytes;
+        }
+
+        public void setDecodedMaxBytes(long decodedMaxBytes) {
+            this.decodedMaxBytes = decodedMaxBytes;
+        }
+
+        public long getRenderMaxBytes() {
+            return renderMaxBytes;
+        }
+
+        public void setRenderMaxBytes(long renderMaxBytes) {
+            this.renderMaxBytes = renderMaxBytes;
+        }
+
+        public long getPdfMaxBytes() {
+            return pdfMaxBytes;
+        }
+
+        public void setPdfMaxBytes(long pdfMaxBytes) {
+            this.pdfMaxBytes = pdfMaxBytes;
+        }
+    }
+
+    public static class Workers {
+        private int parallelism;
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+    }
+
+    public static class Jpeg {
+        private String encoder = "imageio";
+        private long dctMaxPixels;
+        private boolean parallelSearch;
+
+        public String getEncoder() {
+            return encoder;
+        }
+
+        public void setEncoder(String encoder) {
+            this.encoder = encoder;
+        }
+
+        public long getDctMaxPixels() {
+            return dctMaxPixels;
+        }
+
+        public void setDctMaxPixels(long dctMaxPixels) {
+            this.dctMaxPixels = dctMaxPixels;
+        }
+
+        public boolean isParallelSearch() {
+            return parallelSearch;
+        }
+
+        public void setParallelSearch(boolean parallelSearch) {
+            this.parallelSearch = parallelSearch;
+        }
+    }
+
+    public static class Pdf {
+        private long scratchMemoryBytes;
+
+        public long getScratchMemoryBytes() {
+            return scratchMemoryBytes;
+        }
+
+        public void setScratchMemoryBytes(long scratchMemoryBytes) {
+            this.scratchMemoryBytes = scratchMemoryBytes;
+        }
     }
 
     public String getTempDir() {
@@ -61,4 +158,36 @@ public class AppProperties {
     public void setUpload(Upload upload) {
         this.upload = upload;
     }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public void setCache(Cache cache) {
+        this.cache = cache;
+    }
+
+    public Workers getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(Workers workers) {
+        this.workers = workers;
+    }
+
+    public Jpeg getJpeg() {
+        return jpeg;
+    }
+
+    public void setJpeg(Jpeg jpeg) {
+        this.jpeg = jpeg;
+    }
+
+    public Pdf getPdf() {
+        return pdf;
+    }
+
+    public void setPdf(Pdf pdf) {
+        this.pdf = pdf;
+    }
 }
@@ -0,0 +1,24 @@
+package com.sufi.pancardresizer.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ForkJoinPool;
+
+@Configuration
+public class ExecutorConfig {
+    private final AppProperties properties;
+
+    public ExecutorConfig(AppProperties properties) {
+        this.properties = properties;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ForkJoinPool imageWorkerPool() {
+        int parallelism = properties.getWorkers().getParallelism();
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        return new ForkJoinPool(parallelism);
+    }
+}
@@ -1,18 +1,27 @@
 package com.sufi.pancardresizer.controller;
 
+import com.sufi.pancardresizer.cache.DecodedImageCache;
+import com.sufi.pancardresizer.cache.PdfDocumentCache;
+import com.sufi.pancardresizer.cache.RenderCache;
 import com.sufi.pancardresizer.dto.*;
+import com.sufi.pancardresizer.model.RenderedOutput;
 import com.sufi.pancardresizer.model.StoredFile;
 import com.sufi.pancardresizer.service.DocumentService;
 import com.sufi.pancardresizer.service.ImageService;
 import com.sufi.pancardresizer.service.PreviewService;
 import com.sufi.pancardresizer.service.StorageService;
 import com.sufi.pancardresizer.exception.AppException;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -20,16 +29,25 @@ import java.util.stream.Collectors;
 @RestController
 @RequestMapping("/api")
 public class PanController {
+    private static final Duration PREVIEW_MAX_AGE = Duration.ofHours(1);
+
     private final StorageService storageService;
     private final PreviewService previewService;
     private final ImageService imageService;
     private final DocumentService documentService;
+    private final DecodedImageCache decodedImageCache;
+    private final RenderCache renderCache;
+    private final PdfDocumentCache pdfDocumentCache;
 
-    public PanController(StorageService storageService, PreviewService previewService, ImageService imageService, DocumentService documentService) {
+    public PanController(StorageService storageService, PreviewService previewService, ImageService imageService, DocumentService documentService,
+                         DecodedImageCache decodedImageCache, RenderCache renderCache, PdfDocumentCache pdfDocumentCache) {
         this.storageService = storageService;
         this.previewService = previewService;
         this.imageService = imageService;
         this.documentService = documentService;
+        this.decodedImageCache = decodedImageCache;
+        this.renderCache = renderCache;
+        this.pdfDocumentCache = pdfDocumentCache;
     }
 
     @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
@@ -50,6 +68,25 @@ public class PanController {
             .body(data);
     }
 
+    @GetMapping(value = "/preview", produces = MediaType.IMAGE_JPEG_VALUE)
+    public ResponseEntity<byte[]> previewGet(@ModelAttribute PreviewRequest request,
+                                             @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String etag = previewService.previewETag(request);
+        CacheControl cacheControl = CacheControl.maxAge(PREVIEW_MAX_AGE).cachePrivate();
+        if (etagMatches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                .eTag(etag)
+                .cacheControl(cacheControl)
+                .build();
+        }
+        byte[] data = previewService.buildPreview(request);
+        return ResponseEntity.ok()
+            .contentType(MediaType.IMAGE_JPEG)
+            .eTag(etag)
+            .cacheControl(cacheControl)
+            .body(data);
+    }
+
     @PostMapping(value = "/render/photo", produces = MediaType.IMAGE_JPEG_VALUE)
     public ResponseEntity<byte[]> renderPhoto(@RequestBody RenderPhotoRequest request) {
         byte[] data = imageService.renderPhoto(request);
@@ -91,15 +128,22 @@ public class PanController {
         return preview(request);
     }
 
+    @GetMapping(value = "/kb/preview", produces = MediaType.IMAGE_JPEG_VALUE)
+    public ResponseEntity<byte[]> previewKbGet(@ModelAttribute PreviewRequest request,
+                                               @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return previewGet(request, ifNoneMatch);
+    }
+
     @PostMapping(value = "/kb/render/photo", produces = MediaType.IMAGE_JPEG_VALUE)
     public ResponseEntity<byte[]> renderKbPhoto(@RequestBody RenderPhotoRequest request) {
         return renderPhotoKb(request);
     }
 
     @PostMapping(value = "/kb/size/photo", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<KbSizeResponse> sizeKbPhoto(@RequestBody RenderPhotoRequest request) {
-        ImageService.SizeResult result = imageService.getKbSize(request);
-        return ResponseEntity.ok(new KbSizeResponse(result.getSizeBytes(), result.isExact()));
+    public ResponseEntity<KbSizeResponse> sizeKbPhoto(@RequestBody RenderPhotoRequest request,
+                                                      @RequestParam(defaultValue = "false") boolean exact) {
+        ImageService.SizeResult result = imageService.getKbSize(request, exact);
+        return ResponseEntity.ok(new KbSizeResponse(result.getSizeBytes(), result.isExact(), result.getErrorBytes()));
     }
 
     @PostMapping(value = "/render/signature", produces = MediaType.IMAGE_JPEG_VALUE)
@@ -112,30 +156,58 @@ public class PanController {
     }
 
     @PostMapping(value = "/render/documents", produces = MediaType.APPLICATION_PDF_VALUE)
-    public ResponseEntity<byte[]> renderDocuments(@RequestBody RenderDocumentsRequest request) {
-        byte[] data = documentService.renderDocuments(request.getFileIds());
+    public ResponseEntity<StreamingResponseBody> renderDocuments(@RequestBody RenderDocumentsRequest request) {
+        RenderedOutput data = documentService.renderDocuments(request.getFileIds());
         return ResponseEntity.ok()
             .contentType(MediaType.APPLICATION_PDF)
             .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=pan-documents.pdf")
-            .body(data);
+            .contentLength(data.getLength())
+            .body(data::writeTo);
     }
 
     @PostMapping(value = "/render/document-image", produces = MediaType.IMAGE_JPEG_VALUE)
-    public ResponseEntity<byte[]> renderDocumentImage(@RequestBody RenderDocumentsRequest request) {
-        byte[] data = documentService.renderDocumentImage(request.getFileIds());
+    public ResponseEntity<StreamingResponseBody> renderDocumentImage(@RequestBody RenderDocumentsRequest request) {
+        RenderedOutput data = documentService.renderDocumentImage(request.getFileIds());
         return ResponseEntity.ok()
             .contentType(MediaType.IMAGE_JPEG)
             .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=pan-document.jpg")
-            .body(data);
+            .contentLength(data.getLength())
+            .body(data::writeTo);
     }
 
     @PostMapping(value = "/pdf/render/documents", produces = MediaType.APPLICATION_PDF_VALUE)
-    public ResponseEntity<byte[]> renderDocumentsByKb(@RequestBody RenderDocumentsRequest request) {
-        byte[] data = documentService.renderDocumentsByKb(request.getFileIds(), request.getMaxKb());
+    public ResponseEntity<StreamingResponseBody> renderDocumentsByKb(@RequestBody RenderDocumentsRequest request) {
+        RenderedOutput data = documentService.renderDocumentsByKb(request.getFileIds(), request.getMaxKb());
         return ResponseEntity.ok()
             .contentType(MediaType.APPLICATION_PDF)
             .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=pan-documents.pdf")
-            .body(data);
+            .contentLength(data.getLength())
+            .body(data::writeTo);
+    }
+
+    @GetMapping(value = "/stats/cache", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<CacheStatsResponse> cacheStats() {
+        List<CacheStatsResponse> stats = new ArrayList<>();
+        stats.add(decodedImageCache.stats());
+        stats.addAll(renderCache.stats());
+        stats.addAll(pdfDocumentCache.stats());
+        return stats;
+    }
+
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private UploadFileMeta toMeta(StoredFile stored) {
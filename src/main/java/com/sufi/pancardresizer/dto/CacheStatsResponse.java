@@ -0,0 +1,48 @@
+package com.sufi.pancardresizer.dto;
+
+public class CacheStatsResponse {
+    private final String name;
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long entries;
+    private final long weightedBytes;
+
+    public CacheStatsResponse(String name, long hitCount, long missCount, long evictionCount, long entries, long weightedBytes) {
+        this.name = name;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.entries = entries;
+        this.weightedBytes = weightedBytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getWeightedBytes() {
+        return weightedBytes;
+    }
+
+    public double getHitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 0.0 : (double) hitCount / requests;
+    }
+}
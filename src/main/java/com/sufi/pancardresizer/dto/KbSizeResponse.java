@@ -3,13 +3,15 @@ package com.sufi.pancardresizer.dto;
 public class KbSizeResponse {
     private long sizeBytes;
     private boolean exact;
+    private long errorBytes;
 
     public KbSizeResponse() {
     }
 
-    public KbSizeResponse(long sizeBytes, boolean exact) {
+    public KbSizeResponse(long sizeBytes, boolean exact, long errorBytes) {
         this.sizeBytes = sizeBytes;
         this.exact = exact;
+        this.errorBytes = errorBytes;
     }
 
     public long getSizeBytes() {
@@ -28,6 +30,14 @@ public class KbSizeResponse {
         this.exact = exact;
     }
 
+    public long getErrorBytes() {
+        return errorBytes;
+    }
+
+    public void setErrorBytes(long errorBytes) {
+        this.errorBytes = errorBytes;
+    }
+
     public double getSizeKb() {
         return sizeBytes / 1024.0;
     }
@@ -5,6 +5,8 @@ public class PreviewRequest {
     private int rotate;
     private double zoom;
     private CropRect crop;
+    private int page;
+    private int size;
 
     public String getFileId() {
         return fileId;
@@ -37,4 +39,20 @@ public class PreviewRequest {
     public void setCrop(CropRect crop) {
         this.crop = crop;
     }
+
+    public int getPage() {
+        return page;
+    }
+
+    public void setPage(int page) {
+        this.page = page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
 }
@@ -0,0 +1,74 @@
+package com.sufi.pancardresizer.model;
+
+import java.util.List;
+
+public class PdfInfo {
+    private final List<Page> pages;
+
+    public PdfInfo(List<Page> pages) {
+        this.pages = List.copyOf(pages);
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    public Page getPage(int index) {
+        return pages.get(index);
+    }
+
+    public List<Page> getPages() {
+        return pages;
+    }
+
+    public static class Page {
+        private final float widthPt;
+        private final float heightPt;
+        private final int rotation;
+        private final long contentBytes;
+        private final int imageCount;
+        private final long imagePixels;
+        private volatile long vectorBytes = -1;
+
+        public Page(float widthPt, float heightPt, int rotation, long contentBytes, int imageCount, long imagePixels) {
+            this.widthPt = widthPt;
+            this.heightPt = heightPt;
+            this.rotation = rotation;
+            this.contentBytes = contentBytes;
+            this.imageCount = imageCount;
+            this.imagePixels = imagePixels;
+        }
+
+        public float getWidthPt() {
+            return widthPt;
+        }
+
+        public float getHeightPt() {
+            return heightPt;
+        }
+
+        public int getRotation() {
+            return rotation;
+        }
+
+        public long getContentBytes() {
+            return contentBytes;
+        }
+
+        public int getImageCount() {
+            return imageCount;
+        }
+
+        public long getImagePixels() {
+            return imagePixels;
+        }
+
+        public long getVectorBytes() {
+            return vectorBytes;
+        }
+
+        public void setVectorBytes(long vectorBytes) {
+            this.vectorBytes = vectorBytes;
+        }
+    }
+}
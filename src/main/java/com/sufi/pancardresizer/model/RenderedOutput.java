@@ -0,0 +1,68 @@
+package com.sufi.pancardresizer.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public final class RenderedOutput {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final byte[] buffer;
+    private final FileChannel file;
+    private final int length;
+
+    public RenderedOutput(byte[] buffer, int length) {
+        this(buffer, null, length);
+    }
+
+    private RenderedOutput(byte[] buffer, FileChannel file, int length) {
+        this.buffer = buffer;
+        this.file = file;
+        this.length = length;
+    }
+
+    public static RenderedOutput of(byte[] data) {
+        return new RenderedOutput(data, data.length);
+    }
+
+    // coalesced requests share one output, so nobody knows who reads it last: the file is unlinked as
+    // it is opened (deleted on close elsewhere) and the channel is closed once the output is unreachable
+    public static RenderedOutput spilled(Path path, int length) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+        RenderedOutput output = new RenderedOutput(null, channel, length);
+        CLEANER.register(output, () -> {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        });
+        return output;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if (file == null) {
+            out.write(buffer, 0, length);
+            return;
+        }
+        // positional transfers leave the channel position alone, so concurrent readers do not interfere
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = 0;
+        while (position < length) {
+            long sent = file.transferTo(position, length - position, target);
+            if (sent <= 0) {
+                throw new EOFException("Rendered output is shorter than " + length + " bytes");
+            }
+            position += sent;
+        }
+    }
+}
@@ -12,9 +12,10 @@ public class StoredFile {
     private final Integer width;
     private final Integer height;
     private final String format;
+    private final String contentHash;
     private final Instant createdAt;
 
-    public StoredFile(String fileId, String originalName, Path path, String contentType, long sizeBytes, Integer width, Integer height, String format) {
+    public StoredFile(String fileId, String originalName, Path path, String contentType, long sizeBytes, Integer width, Integer height, String format, String contentHash) {
         this.fileId = fileId;
         this.originalName = originalName;
         this.path = path;
@@ -23,6 +24,7 @@ public class StoredFile {
         this.width = width;
         this.height = height;
         this.format = format;
+        this.contentHash = contentHash;
         this.createdAt = Instant.now();
     }
 
@@ -58,6 +60,10 @@ public class StoredFile {
         return format;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
     public Instant getCreatedAt() {
         return createdAt;
     }
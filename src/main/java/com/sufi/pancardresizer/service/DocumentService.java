@@ -1,214 +1,952 @@
 package com.sufi.pancardresizer.service;
 
+import com.sufi.pancardresizer.cache.DecodedImageCache;
+import com.sufi.pancardresizer.cache.PdfDocumentCache;
 import com.sufi.pancardresizer.exception.AppException;
+import com.sufi.pancardresizer.model.PdfInfo;
+import com.sufi.pancardresizer.model.RenderedOutput;
 import com.sufi.pancardresizer.model.StoredFile;
 import com.sufi.pancardresizer.util.ImageUtils;
-import org.apache.pdfbox.Loader;
+import com.sufi.pancardresizer.util.JpegEncoder;
+import com.sufi.pancardresizer.util.PixelKernels;
+import com.sufi.pancardresizer.util.SingleFlight;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.image.CCITTFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
-import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 import org.apache.pdfbox.rendering.PDFRenderer;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
+import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Service
 public class DocumentService {
+    private static final int WHITE_THRESHOLD = 245;
+    private static final int BLACK_THRESHOLD = 24;
+    // prepared pages kept for size retries may take a quarter of the heap; the rest is re-rendered on demand
+    private static final long SESSION_PAGE_MAX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    // pages without a text layer can only give up resolution and quality across the whole page
+    private static final Level[] PLAIN_LEVELS = {
+        new Level(1.0f, 1.0f, 0.9f),
+        new Level(1.0f, 1.0f, 0.85f),
+        new Level(0.85f, 1.0f, 0.85f),
+        new Level(0.85f, 1.0f, 0.8f)
+    };
+    // MRC: text stays a full-resolution stencil, only the background behind it is downsampled
+    private static final Level[] MRC_LEVELS = {
+        new Level(1.0f, 1.0f, 0.9f),
+        new Level(1.0f, 1.0f, 0.85f),
+        new Level(1.0f, 0.5f, 0.8f),
+        new Level(1.0f, 0.5f, 0.65f),
+        new Level(1.0f, 0.5f, 0.5f)
+    };
+    private static final Level PLAIN_FLOOR_AT_FULL_SCALE = new Level(1.0f, 1.0f, 0.8f);
+    private static final double SCALE_SIZE_EXPONENT = 1.8;
+    private static final int MAX_BUDGET_ROUNDS = 6;
+    private static final long PDF_BASE_OVERHEAD_BYTES = 1024;
+    private static final long PDF_PAGE_OVERHEAD_BYTES = 512;
+    // rendered raster plus the split base and ARGB mask, all alive at once while a page is prepared
+    private static final int PREPARE_BYTES_PER_PIXEL = 12;
+    private static final int BUDGET_UNIT_BYTES = 1024 * 1024;
+    // saved PDFs past this size are written to a scratch file and streamed from there
+    private static final int SAVE_MEMORY_BYTES = 256 * 1024;
+
     private final StorageService storageService;
+    private final DecodedImageCache decodedImageCache;
+    private final PdfDocumentCache pdfDocuments;
+    private final ForkJoinPool workerPool;
+    private final SingleFlight<String, RenderedOutput> renders = new SingleFlight<>();
+    // shared by all requests: pages are only prepared in parallel while their rasters fit in half the heap
+    private final int prepareBudgetUnits = (int) Math.max(1, Runtime.getRuntime().maxMemory() / 2 / BUDGET_UNIT_BYTES);
+    private final Semaphore prepareBudget = new Semaphore(prepareBudgetUnits, true);
 
-    public DocumentService(StorageService storageService) {
+    public DocumentService(StorageService storageService, DecodedImageCache decodedImageCache, PdfDocumentCache pdfDocuments,
+                           ForkJoinPool imageWorkerPool) {
         this.storageService = storageService;
+        this.decodedImageCache = decodedImageCache;
+        this.pdfDocuments = pdfDocuments;
+        this.workerPool = imageWorkerPool;
     }
 
-    public byte[] renderDocuments(List<String> fileIds) {
+    public RenderedOutput renderDocuments(List<String> fileIds) {
         if (fileIds == null || fileIds.isEmpty()) {
             throw new AppException("No documents provided", "documents_required");
         }
 
-        return renderDocumentsByMaxBytes(fileIds, 2 * 1024 * 1024, false, false);
+        return coalesce(renders, buildRenderKey("documents", fileIds, 0),
+            () -> renderDocumentsByMaxBytes(fileIds, 2 * 1024 * 1024, false, false));
     }
 
-    public byte[] renderDocumentsByKb(List<String> fileIds, int maxKb) {
-        int safeKb = maxKb <= 0 ? 250 : maxKb;
-        safeKb = Math.max(50, Math.min(2048, safeKb));
-        return renderDocumentsByMaxBytes(fileIds, safeKb * 1024, true, true);
+    public RenderedOutput renderDocumentsByKb(List<String> fileIds, int maxKb) {
+        int targetKb = maxKb <= 0 ? 250 : maxKb;
+        int safeKb = Math.max(50, Math.min(2048, targetKb));
+        if (fileIds == null || fileIds.isEmpty()) {
+            return renderDocumentsByMaxBytes(fileIds, safeKb * 1024, true, true);
+        }
+        return coalesce(renders, buildRenderKey("documentsKb", fileIds, safeKb),
+            () -> renderDocumentsByMaxBytes(fileIds, safeKb * 1024, true, true));
     }
 
-    public byte[] renderDocumentImage(List<String> fileIds) {
+    public RenderedOutput renderDocumentImage(List<String> fileIds) {
         if (fileIds == null || fileIds.isEmpty()) {
             throw new AppException("No documents provided", "documents_required");
         }
-        String fileId = fileIds.get(0);
-        StoredFile stored = storageService.getFile(fileId);
+        StoredFile stored = storageService.getFile(fileIds.get(0));
+        return coalesce(renders, buildRenderKey("documentImage", List.of(stored.getFileId()), 0), () -> renderDocumentImage(stored));
+    }
+
+    // coalesced work reports interruption as a CancellationException; callers see the usual API error
+    private static <V> V coalesce(SingleFlight<String, V> flights, String key, Supplier<V> work) {
+        try {
+            return flights.execute(key, work);
+        } catch (CancellationException e) {
+            throw new AppException("Request interrupted", "request_interrupted");
+        }
+    }
+
+    private String buildRenderKey(String kind, List<String> fileIds, int option) {
+        StringBuilder sb = new StringBuilder(kind).append('|').append(option);
+        for (String fileId : fileIds) {
+            sb.append('|').append(storageService.getFile(fileId).getContentHash());
+        }
+        return sb.toString();
+    }
+
+    private RenderedOutput renderDocumentImage(StoredFile stored) {
         BufferedImage image;
         try {
             if ("pdf".equals(stored.getFormat())) {
-                try (PDDocument doc = Loader.loadPDF(stored.getPath().toFile())) {
-                    PDFRenderer renderer = new PDFRenderer(doc);
-                    image = renderer.renderImageWithDPI(0, 240f);
+                PDDocument doc = pdfDocuments.borrow(stored);
+                try {
+                    image = new PDFRenderer(doc).renderImageWithDPI(0, 240f);
+                } finally {
+                    pdfDocuments.release(stored, doc);
                 }
             } else if ("image".equals(stored.getFormat())) {
-                image = ImageIO.read(stored.getPath().toFile());
-                if (image == null) {
-                    throw new AppException("Invalid image file", "invalid_image");
-                }
+                image = decodedImageCache.get(stored);
             } else {
                 throw new AppException("Unsupported file for documents", "unsupported_type");
             }
 
             image = ImageUtils.toRgb(image);
-            image = ImageUtils.trimWhiteBorders(image);
+            image = ImageUtils.trimWhiteBorders(image, workerPool);
             int maxDim = 2000;
             if (image.getWidth() > maxDim || image.getHeight() > maxDim) {
                 image = ImageUtils.resizeKeepAspect(image, maxDim, maxDim);
             }
-            return ImageUtils.writeJpegWithQualityAndDpi(image, 0.9f, 200);
+            return RenderedOutput.of(ImageUtils.writeJpegWithQualityAndDpi(image, 0.9f, 200));
         } catch (IOException e) {
             throw new AppException("Failed to build document image", "document_image_failed");
         }
     }
 
-    private byte[] renderDocumentsByMaxBytes(List<String> fileIds, int maxBytes, boolean rasterizePdf, boolean bestEffort) {
-        float scale = 1.0f;
-        float quality = 0.9f;
-        float minScale = 0.8f;
-        float minQuality = 0.8f;
-        byte[] lastOutput = null;
-        for (int attempt = 0; attempt < 9; attempt++) {
-            byte[] output = buildPdf(fileIds, scale, quality, rasterizePdf);
-            lastOutput = output;
-            if (output.length <= maxBytes) {
-                return output;
+    private RenderedOutput renderDocumentsByMaxBytes(List<String> fileIds, int maxBytes, boolean rasterizePdf, boolean bestEffort) {
+        try (RenderSession session = new RenderSession(pdfDocuments)) {
+            List<PageJob> jobs = collectPages(session, fileIds, maxBytes, rasterizePdf);
+            long overhead = PDF_BASE_OVERHEAD_BYTES + (long) jobs.size() * PDF_PAGE_OVERHEAD_BYTES;
+            allocate(session, jobs, maxBytes - overhead);
+
+            // every round is saved exactly once; the smallest miss is kept for best effort instead of being rebuilt
+            int capacity = (int) Math.min(SAVE_MEMORY_BYTES, predictedTotal(session, jobs) + overhead);
+            SaveBuffer current = new SaveBuffer(capacity, pdfDocuments.getScratchDir());
+            SaveBuffer smallest = null;
+            try {
+                for (int round = 0; round < MAX_BUDGET_ROUNDS; round++) {
+                    current.reset();
+                    try (PDDocument output = buildPdf(session, jobs)) {
+                        output.save(current);
+                    }
+                    long size = current.size();
+                    if (size <= maxBytes) {
+                        return current.share();
+                    }
+                    if (bestEffort && (smallest == null || size < smallest.size())) {
+                        SaveBuffer previous = smallest;
+                        smallest = current;
+                        current = previous == null ? new SaveBuffer(capacity, pdfDocuments.getScratchDir()) : previous;
+                    }
+                    overhead = Math.max(0, size - predictedTotal(session, jobs));
+                    if (!allocate(session, jobs, maxBytes - overhead)) {
+                        break;
+                    }
+                }
+
+                if (smallest != null) {
+                    return smallest.share();
+                }
+            } finally {
+                current.discard();
+                if (smallest != null) {
+                    smallest.discard();
+                }
             }
-            float nextScale = scale * 0.85f;
-            float nextQuality = quality - 0.05f;
-            if (nextScale < minScale && nextQuality < minQuality) {
-                break;
+        } catch (IOException e) {
+            throw new AppException("Failed to build PDF", "pdf_failed");
+        }
+        throw new AppException("Target size not reachable without quality loss", "pdf_quality_floor");
+    }
+
+    private long predictedTotal(RenderSession session, List<PageJob> jobs) throws IOException {
+        long pageBytes = 0;
+        for (PageJob job : jobs) {
+            pageBytes += predicted(session, job, job.level);
+        }
+        return pageBytes;
+    }
+
+    private List<PageJob> collectPages(RenderSession session, List<String> fileIds, int maxBytes, boolean rasterizePdf) throws IOException {
+        List<PageJob> jobs = new ArrayList<>();
+        for (String fileId : fileIds) {
+            StoredFile stored = storageService.getFile(fileId);
+            if ("pdf".equals(stored.getFormat())) {
+                PdfInfo info = pdfDocuments.info(stored);
+                for (int i = 0; i < info.getPageCount(); i++) {
+                    jobs.add(new PageJob(stored, i));
+                }
+            } else if ("image".equals(stored.getFormat())) {
+                jobs.add(new PageJob(stored, -1));
+            } else {
+                throw new AppException("Unsupported file for documents", "unsupported_type");
             }
-            if (nextScale >= minScale) {
-                scale = nextScale;
+        }
+
+        // pages that are already small enough stay as vector copies and are never rasterized
+        long fairShare = jobs.isEmpty() ? maxBytes : maxBytes / jobs.size();
+        for (PageJob job : jobs) {
+            if (job.pageIndex < 0) {
+                continue;
             }
-            if (nextQuality >= minQuality) {
-                quality = nextQuality;
+            // the page's own content streams are copied as they are, so they bound the standalone size from below
+            long contentBytes = pdfDocuments.info(job.stored).getPage(job.pageIndex).getContentBytes();
+            if (!rasterizePdf) {
+                // nothing to decide, so the cheap bound stands in until the first save measures the rest
+                job.vector = true;
+                job.vectorBytes = contentBytes;
+                continue;
             }
+            if (contentBytes > fairShare) {
+                continue;
+            }
+            job.vectorBytes = pdfDocuments.vectorBytes(job.stored, session.document(job.stored), job.pageIndex);
+            job.vector = job.vectorBytes <= fairShare;
         }
-        if (bestEffort && lastOutput != null) {
-            return lastOutput;
+        return jobs;
+    }
+
+    // returns false when the allocation did not change, i.e. nothing is left to try
+    private boolean allocate(RenderSession session, List<PageJob> jobs, long budget) throws IOException {
+        boolean changed = false;
+        long total = 0;
+        measureAll(session, jobs, job -> List.of(job.levels()[0]));
+        for (PageJob job : jobs) {
+            if (!job.vector) {
+                long current = predicted(session, job, job.level);
+                for (int level = 0; level < job.level; level++) {
+                    if (predicted(session, job, level) <= current) {
+                        job.level = level;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            total += predicted(session, job, job.level);
         }
-        throw new AppException("Target size not reachable without quality loss", "pdf_quality_floor");
+        if (total > budget) {
+            // MRC levels are cheap to encode, so they are measured outright instead of modelled
+            measureAll(session, jobs, job -> job.mrc ? Arrays.asList(MRC_LEVELS) : List.of(PLAIN_FLOOR_AT_FULL_SCALE));
+        }
+
+        int[] levels = new int[jobs.size()];
+        int[] levelCounts = new int[jobs.size()];
+        for (int i = 0; i < levels.length; i++) {
+            PageJob job = jobs.get(i);
+            levels[i] = job.level;
+            // vector pages have nothing to give up
+            levelCounts[i] = job.vector ? 1 : job.levels().length;
+        }
+        stepDown(levels, levelCounts, (page, level) -> predicted(session, jobs.get(page), level), total, budget);
+        for (int i = 0; i < levels.length; i++) {
+            if (jobs.get(i).level != levels[i]) {
+                jobs.get(i).level = levels[i];
+                changed = true;
+            }
+        }
+        return changed;
     }
 
-    private byte[] buildPdf(List<String> fileIds, float scale, float quality, boolean rasterizePdf) {
-        try (PDDocument output = new PDDocument()) {
-            for (String fileId : fileIds) {
-                StoredFile stored = storageService.getFile(fileId);
-                if ("pdf".equals(stored.getFormat())) {
-                    if (!rasterizePdf) {
-                        try (PDDocument doc = Loader.loadPDF(stored.getPath().toFile())) {
-                            for (PDPage page : doc.getPages()) {
-                                output.importPage(page);
-                            }
-                        }
-                    } else {
-                        try (PDDocument doc = Loader.loadPDF(stored.getPath().toFile())) {
-                            PDFRenderer renderer = new PDFRenderer(doc);
-                            for (int i = 0; i < doc.getNumberOfPages(); i++) {
-                                float dpi = 240f * scale;
-                                BufferedImage image = renderer.renderImageWithDPI(i, dpi);
-                                image = ImageUtils.toRgb(image);
-                                image = ImageUtils.trimWhiteBorders(image);
-                                writeImagePage(output, image, quality);
-                            }
+    // one step at a time: each page offers its next smaller level, and the best saving per step wins;
+    // returns the predicted total, which is still over budget when every page is at its floor
+    static long stepDown(int[] levels, int[] levelCounts, LevelSizes sizes, long total, long budget) throws IOException {
+        while (total > budget) {
+            int best = -1;
+            int bestLevel = -1;
+            long bestSaving = 0;
+            double bestRate = 0;
+            for (int page = 0; page < levels.length; page++) {
+                if (levels[page] + 1 >= levelCounts[page]) {
+                    continue;
+                }
+                long current = sizes.size(page, levels[page]);
+                for (int level = levels[page] + 1; level < levelCounts[page]; level++) {
+                    long saving = current - sizes.size(page, level);
+                    if (saving > 0) {
+                        double rate = (double) saving / (level - levels[page]);
+                        if (rate > bestRate) {
+                            best = page;
+                            bestLevel = level;
+                            bestSaving = saving;
+                            bestRate = rate;
                         }
+                        break;
                     }
-                } else if ("image".equals(stored.getFormat())) {
-                    BufferedImage image = ImageIO.read(stored.getPath().toFile());
-                    if (image == null) {
-                        throw new AppException("Invalid image file", "invalid_image");
-                    }
-                    image = ImageUtils.toRgb(image);
-                    image = ImageUtils.trimWhiteBorders(image);
-                    int maxDim = Math.round(2000 * scale);
-                    if (image.getWidth() > maxDim || image.getHeight() > maxDim) {
-                        image = ImageUtils.resizeKeepAspect(image, maxDim, maxDim);
-                    }
-                    writeImagePage(output, image, quality);
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            levels[best] = bestLevel;
+            total -= bestSaving;
+        }
+        return total;
+    }
+
+    private PDDocument buildPdf(RenderSession session, List<PageJob> jobs) throws IOException {
+        Map<String, PageTask> tasks = new LinkedHashMap<>();
+        for (PageJob job : jobs) {
+            if (!job.vector) {
+                addTask(session, tasks, job, job.current());
+            }
+        }
+        Map<String, PreparedPage> pages = prepareAll(session, tasks);
+
+        // PDFBox documents are not thread-safe, so only the assembly runs on the request thread
+        PDDocument output = pdfDocuments.createDocument();
+        try {
+            for (PageJob job : jobs) {
+                if (job.vector) {
+                    output.importPage(session.document(job.stored).getPage(job.pageIndex));
                 } else {
-                    throw new AppException("Unsupported file for documents", "unsupported_type");
+                    Level level = job.current();
+                    PreparedPage page = pages.get(pageKey(job, level.pageScale));
+                    byte[] jpeg = page.encode(level);
+                    job.record(level, jpeg.length + page.maskBytes());
+                    writeImagePage(output, page, jpeg);
+                }
+            }
+            return output;
+        } catch (IOException | RuntimeException e) {
+            output.close();
+            throw e;
+        }
+    }
+
+    private long predicted(RenderSession session, PageJob job, int index) throws IOException {
+        if (job.vector) {
+            return job.vectorBytes;
+        }
+        Level level = job.levels()[index];
+        Long known = job.measured(level);
+        if (known != null) {
+            return known;
+        }
+        if (job.mrc) {
+            return measure(session, job, level);
+        }
+        Level top = PLAIN_LEVELS[0];
+        long size = measure(session, job, top);
+        if (level.quality < top.quality) {
+            long floor = measure(session, job, PLAIN_FLOOR_AT_FULL_SCALE);
+            double t = (top.quality - level.quality) / (top.quality - PLAIN_FLOOR_AT_FULL_SCALE.quality);
+            size = Math.round(size * Math.pow((double) floor / size, t));
+        }
+        if (level.pageScale != 1.0f) {
+            size = Math.round(size * Math.pow(level.pageScale, SCALE_SIZE_EXPONENT));
+        }
+        return size;
+    }
+
+    private long measure(RenderSession session, PageJob job, Level level) throws IOException {
+        Long known = job.measured(level);
+        if (known == null) {
+            measureAll(session, List.of(job), target -> List.of(level));
+            known = job.measured(level);
+        }
+        return known;
+    }
+
+    private void measureAll(RenderSession session, List<PageJob> jobs, Function<PageJob, List<Level>> levels) throws IOException {
+        Map<String, PageTask> tasks = new LinkedHashMap<>();
+        for (PageJob job : jobs) {
+            if (job.vector) {
+                continue;
+            }
+            for (Level level : levels.apply(job)) {
+                if (job.measured(level) == null) {
+                    addTask(session, tasks, job, level);
                 }
             }
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                output.save(baos);
-                return baos.toByteArray();
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+        Map<String, PreparedPage> pages = prepareAll(session, tasks);
+        for (PageJob job : jobs) {
+            if (job.vector) {
+                continue;
             }
-        } catch (IOException e) {
-            throw new AppException("Failed to build PDF", "pdf_failed");
+            for (Level level : levels.apply(job)) {
+                PreparedPage page = pages.get(pageKey(job, level.pageScale));
+                if (page != null && job.measured(level) == null) {
+                    job.record(level, page.encode(level).length + page.maskBytes());
+                }
+                if (page != null && level.pageScale == 1.0f) {
+                    job.mrc = page.mask != null;
+                }
+            }
+        }
+    }
+
+    private String pageKey(PageJob job, float pageScale) {
+        return job.stored.getContentHash() + "|" + job.pageIndex + "|" + pageScale;
+    }
+
+    private void addTask(RenderSession session, Map<String, PageTask> tasks, PageJob job, Level level) {
+        String key = pageKey(job, level.pageScale);
+        PageTask task = tasks.get(key);
+        if (task == null) {
+            task = new PageTask(key, job.stored, job.pageIndex, level.pageScale, session.page(key));
+            tasks.put(key, task);
+        }
+        task.levels.add(level);
+    }
+
+    // render, trim, mask split and encode one page per worker; only the encoded bytes travel back to the
+    // calling thread, so rasters outlive their worker only when they fit in the session cache
+    private Map<String, PreparedPage> prepareAll(RenderSession session, Map<String, PageTask> tasks) throws IOException {
+        List<Callable<PreparedPage>> calls = new ArrayList<>();
+        for (PageTask task : tasks.values()) {
+            int units = budgetUnits(estimateBytes(task));
+            calls.add(() -> {
+                acquireBudget(units);
+                try {
+                    PreparedPage page = task.cached != null ? task.cached : preparePage(session, task);
+                    for (Level level : task.levels) {
+                        page.encode(level);
+                    }
+                    session.putPage(task.key, page);
+                    return page.encodings(task.levels);
+                } finally {
+                    prepareBudget.release(units);
+                }
+            });
+        }
+
+        List<PreparedPage> results = runAll(calls);
+        Map<String, PreparedPage> pages = new HashMap<>();
+        int i = 0;
+        for (String key : tasks.keySet()) {
+            pages.put(key, results.get(i++));
+        }
+        return pages;
+    }
+
+    private List<PreparedPage> runAll(List<Callable<PreparedPage>> calls) throws IOException {
+        List<PreparedPage> results = new ArrayList<>(calls.size());
+        if (calls.size() < 2 || workerPool.getParallelism() < 2 || ForkJoinTask.inForkJoinPool()) {
+            for (Callable<PreparedPage> call : calls) {
+                try {
+                    results.add(call.call());
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Page render failed", e);
+                }
+            }
+            return results;
+        }
+
+        for (Future<PreparedPage> future : workerPool.invokeAll(calls)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                if (e.getCause() instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                throw new IOException("Page render failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AppException("Request interrupted", "request_interrupted");
+            }
+        }
+        return results;
+    }
+
+    private long estimateBytes(PageTask task) {
+        if (task.cached != null) {
+            // only backgrounds and encoder buffers are added to a page that is already prepared
+            return PreparedPage.rasterBytes(task.cached.base);
+        }
+        if (task.pageIndex >= 0) {
+            PdfInfo.Page page = pdfDocuments.info(task.stored).getPage(task.pageIndex);
+            double pixelsPerPt = 240.0 * task.scale / 72.0;
+            return (long) (page.getWidthPt() * pixelsPerPt * page.getHeightPt() * pixelsPerPt * PREPARE_BYTES_PER_PIXEL);
+        }
+        // decoded images get an RGB copy at full size before they are fitted and split
+        double maxDim = 2000.0 * task.scale;
+        Integer width = task.stored.getWidth();
+        Integer height = task.stored.getHeight();
+        if (width == null || height == null) {
+            return (long) (maxDim * maxDim * PREPARE_BYTES_PER_PIXEL);
+        }
+        long source = (long) width * height;
+        double fit = Math.min(1.0, maxDim / Math.max(width, height));
+        return source * 4 + (long) (source * fit * fit * (PREPARE_BYTES_PER_PIXEL - 4));
+    }
+
+    private int budgetUnits(long bytes) {
+        return (int) Math.min(prepareBudgetUnits, Math.max(1, (bytes + BUDGET_UNIT_BYTES - 1) / BUDGET_UNIT_BYTES));
+    }
+
+    private void acquireBudget(int units) {
+        try {
+            prepareBudget.acquire(units);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AppException("Request interrupted", "request_interrupted");
+        }
+    }
+
+    private PreparedPage preparePage(RenderSession session, PageTask task) throws IOException {
+        if (task.pageIndex < 0) {
+            return prepareImagePage(task.stored, task.scale);
+        }
+        PDDocument doc = session.borrow(task.stored);
+        try {
+            return preparePdfPage(doc, task.pageIndex, task.scale);
+        } finally {
+            session.release(task.stored, doc);
+        }
+    }
+
+    private PreparedPage preparePdfPage(PDDocument doc, int pageIndex, float scale) throws IOException {
+        float dpi = 240f * scale;
+        BufferedImage image = new PDFRenderer(doc).renderImageWithDPI(pageIndex, dpi);
+        image = ImageUtils.toRgb(image);
+        Rectangle bounds = PixelKernels.contentBounds(image, WHITE_THRESHOLD, workerPool);
+        if (bounds == null) {
+            bounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        }
+        return PreparedPage.of(PixelKernels.splitBlack(image, bounds, BLACK_THRESHOLD, workerPool));
+    }
+
+    private PreparedPage prepareImagePage(StoredFile stored, float scale) throws IOException {
+        BufferedImage image = decodedImageCache.get(stored);
+        image = ImageUtils.toRgb(image);
+        image = ImageUtils.trimWhiteBorders(image, workerPool);
+        int maxDim = Math.round(2000 * scale);
+        if (image.getWidth() > maxDim || image.getHeight() > maxDim) {
+            image = ImageUtils.resizeKeepAspect(image, maxDim, maxDim);
         }
+        return PreparedPage.of(PixelKernels.splitBlack(image, new Rectangle(0, 0, image.getWidth(), image.getHeight()), BLACK_THRESHOLD, workerPool));
     }
 
-    private void writeImagePage(PDDocument output, BufferedImage image, float quality) throws IOException {
-        float widthPts = (image.getWidth() / 200f) * 72f;
-        float heightPts = (image.getHeight() / 200f) * 72f;
+    private void writeImagePage(PDDocument output, PreparedPage prepared, byte[] jpeg) throws IOException {
+        float widthPts = (prepared.width / 200f) * 72f;
+        float heightPts = (prepared.height / 200f) * 72f;
         float padPts = 12f;
         PDPage page = new PDPage(new PDRectangle(widthPts + padPts * 2, heightPts + padPts * 2));
         output.addPage(page);
-        BlackLayer layer = splitBlackMask(image);
-        PDImageXObject baseImage = JPEGFactory.createFromImage(output, layer.base, quality);
+        PDImageXObject baseImage = JPEGFactory.createFromByteArray(output, jpeg);
         try (PDPageContentStream cs = new PDPageContentStream(output, page)) {
             cs.drawImage(baseImage, padPts, padPts, widthPts, heightPts);
-            if (layer.hasMask) {
-                PDImageXObject maskImage = LosslessFactory.createFromImage(output, layer.mask);
-                cs.drawImage(maskImage, padPts, padPts, widthPts, heightPts);
-            }
-        }
-    }
-
-    private BlackLayer splitBlackMask(BufferedImage src) {
-        int w = src.getWidth();
-        int h = src.getHeight();
-        BufferedImage base = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        BufferedImage mask = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        boolean hasMask = false;
-        int blackThreshold = 24;
-
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int rgb = src.getRGB(x, y);
-                int r = (rgb >> 16) & 0xff;
-                int g = (rgb >> 8) & 0xff;
-                int b = rgb & 0xff;
-                boolean isBlack = r <= blackThreshold && g <= blackThreshold && b <= blackThreshold;
-                if (isBlack) {
-                    base.setRGB(x, y, 0xFFFFFF);
-                    mask.setRGB(x, y, 0xFF000000);
-                    hasMask = true;
-                } else {
-                    base.setRGB(x, y, rgb & 0xFFFFFF);
-                    mask.setRGB(x, y, 0x00000000);
-                }
+            if (prepared.mask != null) {
+                cs.setNonStrokingColor(Color.BLACK);
+                cs.drawImage(prepared.maskImage(output), padPts, padPts, widthPts, heightPts);
             }
         }
+    }
 
-        return new BlackLayer(base, mask, hasMask);
+    interface LevelSizes {
+        long size(int page, int level) throws IOException;
     }
 
-    private static class BlackLayer {
+    private static final class Level {
+        private final float pageScale;
+        private final float backgroundScale;
+        private final float quality;
+
+        private Level(float pageScale, float backgroundScale, float quality) {
+            this.pageScale = pageScale;
+            this.backgroundScale = backgroundScale;
+            this.quality = quality;
+        }
+
+        private String key() {
+            return pageScale + "|" + backgroundScale + "|" + quality;
+        }
+
+        private String encodeKey() {
+            return backgroundScale + "|" + quality;
+        }
+    }
+
+    private static final class PreparedPage {
         private final BufferedImage base;
-        private final BufferedImage mask;
-        private final boolean hasMask;
+        private final int width;
+        private final int height;
+        private final byte[] mask;
+        private final COSDictionary maskParams;
+        private final Map<Float, BufferedImage> backgrounds = new HashMap<>();
+        private final Map<String, byte[]> encoded = new HashMap<>();
 
-        private BlackLayer(BufferedImage base, BufferedImage mask, boolean hasMask) {
+        private PreparedPage(BufferedImage base, byte[] mask, COSDictionary maskParams) {
+            this(base, base.getWidth(), base.getHeight(), mask, maskParams);
+        }
+
+        private PreparedPage(BufferedImage base, int width, int height, byte[] mask, COSDictionary maskParams) {
             this.base = base;
+            this.width = width;
+            this.height = height;
             this.mask = mask;
-            this.hasMask = hasMask;
+            this.maskParams = maskParams;
+        }
+
+        // the same page without its rasters: enough to measure or assemble the given levels
+        private PreparedPage encodings(Set<Level> levels) {
+            PreparedPage page = new PreparedPage(null, width, height, mask, maskParams);
+            for (Level level : levels) {
+                page.encoded.put(level.encodeKey(), encoded.get(level.encodeKey()));
+            }
+            return page;
+        }
+
+        // the text layer only changes with page scale, so it is G4-encoded once as a 1-bit stencil
+        private static PreparedPage of(PixelKernels.BlackSplit split) throws IOException {
+            if (!split.hasMask()) {
+                return new PreparedPage(split.getBase(), null, null);
+            }
+            BufferedImage mask = split.getMask();
+            int w = mask.getWidth();
+            int h = mask.getHeight();
+            int[] argb = ((DataBufferInt) mask.getRaster().getDataBuffer()).getData();
+            BufferedImage bits = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
+            byte[] packed = ((DataBufferByte) bits.getRaster().getDataBuffer()).getData();
+            int stride = (w + 7) / 8;
+            Arrays.fill(packed, (byte) 0xFF);
+            for (int y = 0; y < h; y++) {
+                int row = y * w;
+                for (int x = 0; x < w; x++) {
+                    if (argb[row + x] != 0) {
+                        packed[y * stride + (x >> 3)] &= (byte) ~(0x80 >> (x & 7));
+                    }
+                }
+            }
+
+            try (PDDocument scratch = new PDDocument()) {
+                PDImageXObject stencil = CCITTFactory.createFromImage(scratch, bits);
+                byte[] data;
+                try (InputStream in = stencil.getCOSObject().createRawInputStream()) {
+                    data = in.readAllBytes();
+                }
+                COSDictionary params = new COSDictionary((COSDictionary) stencil.getCOSObject().getDictionaryObject(COSName.DECODE_PARMS));
+                return new PreparedPage(split.getBase(), data, params);
+            }
+        }
+
+        private PDImageXObject maskImage(PDDocument output) throws IOException {
+            PDImageXObject stencil = new PDImageXObject(output, new ByteArrayInputStream(mask), COSName.CCITTFAX_DECODE,
+                width, height, 1, PDDeviceGray.INSTANCE);
+            stencil.getCOSObject().setItem(COSName.DECODE_PARMS, maskParams);
+            stencil.getCOSObject().removeItem(COSName.COLORSPACE);
+            stencil.getCOSObject().setBoolean(COSName.IMAGE_MASK, true);
+            return stencil;
+        }
+
+        private byte[] encode(Level level) throws IOException {
+            byte[] jpeg = encoded.get(level.encodeKey());
+            if (jpeg == null) {
+                int dpi = Math.max(1, Math.round(200 * level.backgroundScale));
+                jpeg = JpegEncoder.encode(background(level.backgroundScale), level.quality, dpi);
+                encoded.put(level.encodeKey(), jpeg);
+            }
+            return jpeg;
+        }
+
+        private BufferedImage background(float scale) throws IOException {
+            if (scale == 1.0f) {
+                return base;
+            }
+            BufferedImage background = backgrounds.get(scale);
+            if (background == null) {
+                int w = Math.max(1, Math.round(base.getWidth() * scale));
+                int h = Math.max(1, Math.round(base.getHeight() * scale));
+                background = ImageUtils.resize(base, w, h);
+                backgrounds.put(scale, background);
+            }
+            return background;
+        }
+
+        private long maskBytes() {
+            return mask == null ? 0 : mask.length;
+        }
+
+        private long weight() {
+            long bytes = rasterBytes(base) + maskBytes();
+            for (BufferedImage background : backgrounds.values()) {
+                bytes += rasterBytes(background);
+            }
+            for (byte[] jpeg : encoded.values()) {
+                bytes += jpeg.length;
+            }
+            return bytes;
+        }
+
+        private static long rasterBytes(BufferedImage image) {
+            DataBuffer buffer = image.getRaster().getDataBuffer();
+            return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        }
+    }
+
+    private static final class PageJob {
+        private final StoredFile stored;
+        private final int pageIndex;
+        private final Map<String, Long> sizes = new HashMap<>();
+        private boolean vector;
+        private boolean mrc;
+        private long vectorBytes;
+        private int level;
+
+        private PageJob(StoredFile stored, int pageIndex) {
+            this.stored = stored;
+            this.pageIndex = pageIndex;
+        }
+
+        private Level[] levels() {
+            return mrc ? MRC_LEVELS : PLAIN_LEVELS;
+        }
+
+        private Level current() {
+            return levels()[level];
+        }
+
+        private Long measured(Level level) {
+            return sizes.get(level.key());
+        }
+
+        private void record(Level level, long bytes) {
+            sizes.put(level.key(), bytes);
+        }
+    }
+
+    private static final class PageTask {
+        private final String key;
+        private final StoredFile stored;
+        private final int pageIndex;
+        private final float scale;
+        private final PreparedPage cached;
+        private final Set<Level> levels = new LinkedHashSet<>();
+
+        private PageTask(String key, StoredFile stored, int pageIndex, float scale, PreparedPage cached) {
+            this.key = key;
+            this.stored = stored;
+            this.pageIndex = pageIndex;
+            this.scale = scale;
+            this.cached = cached;
+        }
+    }
+
+    // a saved round stays in memory while it is small and moves to a scratch file past SAVE_MEMORY_BYTES;
+    // the size check only needs the count, and the kept round is handed out without a copy either way
+    private static final class SaveBuffer extends OutputStream {
+        private final Path scratchDir;
+        private byte[] buf;
+        private long count;
+        private Path file;
+        private OutputStream spill;
+
+        private SaveBuffer(int capacity, Path scratchDir) {
+            this.buf = new byte[Math.max(1024, capacity)];
+            this.scratchDir = scratchDir;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (spill == null && count + len > SAVE_MEMORY_BYTES) {
+                file = Files.createTempFile(scratchDir, "output-", ".pdf");
+                spill = new BufferedOutputStream(Files.newOutputStream(file));
+                spill.write(buf, 0, (int) count);
+            }
+            if (spill != null) {
+                spill.write(b, off, len);
+            } else {
+                if (count + len > buf.length) {
+                    buf = Arrays.copyOf(buf, (int) Math.min(SAVE_MEMORY_BYTES, Math.max(count + len, buf.length * 2L)));
+                }
+                System.arraycopy(b, off, buf, (int) count, len);
+            }
+            count += len;
+        }
+
+        private long size() {
+            return count;
+        }
+
+        private void reset() throws IOException {
+            discard();
+            count = 0;
+        }
+
+        // the buffer is not written again afterwards; a spilled file now belongs to the output
+        private RenderedOutput share() throws IOException {
+            if (spill == null) {
+                return new RenderedOutput(buf, (int) count);
+            }
+            spill.close();
+            spill = null;
+            Path shared = file;
+            file = null;
+            try {
+                return RenderedOutput.spilled(shared, (int) count);
+            } catch (IOException e) {
+                Files.deleteIfExists(shared);
+                throw e;
+            }
+        }
+
+        private void discard() throws IOException {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+            if (file != null) {
+                Files.deleteIfExists(file);
+                file = null;
+            }
+        }
+    }
+
+    private static final class RenderSession implements AutoCloseable {
+        private final PdfDocumentCache pdfDocuments;
+        private final Map<String, PDDocument> documents = new HashMap<>();
+        private final Map<String, Deque<PDDocument>> idle = new HashMap<>();
+        private final Map<PDDocument, StoredFile> borrowed = new HashMap<>();
+        // soft: a page kept for a later round gives way before a page that is being rendered now
+        private final Map<String, SoftReference<PreparedPage>> pages = new HashMap<>();
+        private final Map<String, Long> pageWeights = new HashMap<>();
+        private long pageBytes;
+
+        private RenderSession(PdfDocumentCache pdfDocuments) {
+            this.pdfDocuments = pdfDocuments;
+        }
+
+        private PDDocument document(StoredFile stored) throws IOException {
+            PDDocument doc = documents.get(stored.getContentHash());
+            if (doc == null) {
+                doc = borrowShared(stored);
+                documents.put(stored.getContentHash(), doc);
+                release(stored, doc);
+            }
+            return doc;
+        }
+
+        // each render worker gets a document of its own; they stay with the session until it closes
+        private PDDocument borrow(StoredFile stored) throws IOException {
+            synchronized (this) {
+                Deque<PDDocument> free = idle.get(stored.getContentHash());
+                if (free != null && !free.isEmpty()) {
+                    return free.pop();
+                }
+            }
+            return borrowShared(stored);
+        }
+
+        private synchronized void release(StoredFile stored, PDDocument doc) {
+            idle.computeIfAbsent(stored.getContentHash(), key -> new ArrayDeque<>()).push(doc);
+        }
+
+        private PDDocument borrowShared(StoredFile stored) throws IOException {
+            PDDocument doc = pdfDocuments.borrow(stored);
+            synchronized (this) {
+                borrowed.put(doc, stored);
+            }
+            return doc;
+        }
+
+        private synchronized PreparedPage page(String key) {
+            SoftReference<PreparedPage> ref = pages.get(key);
+            PreparedPage page = ref == null ? null : ref.get();
+            if (ref != null && page == null) {
+                pages.remove(key);
+                pageBytes -= pageWeights.remove(key);
+            }
+            return page;
+        }
+
+        private synchronized void putPage(String key, PreparedPage page) {
+            Long previous = pageWeights.remove(key);
+            if (previous != null) {
+                pageBytes -= previous;
+            }
+            long weight = page.weight();
+            if (pageBytes + weight <= SESSION_PAGE_MAX_BYTES) {
+                pages.put(key, new SoftReference<>(page));
+                pageWeights.put(key, weight);
+                pageBytes += weight;
+            } else {
+                pages.remove(key);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            for (Map.Entry<PDDocument, StoredFile> entry : borrowed.entrySet()) {
+                pdfDocuments.release(entry.getValue(), entry.getKey());
+            }
         }
     }
 }
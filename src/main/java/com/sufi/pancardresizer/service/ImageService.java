@@ -1,22 +1,35 @@
 package com.sufi.pancardresizer.service;
 
+import com.sufi.pancardresizer.cache.DecodedImageCache;
+import com.sufi.pancardresizer.cache.RenderCache;
+import com.sufi.pancardresizer.config.AppProperties;
 import com.sufi.pancardresizer.dto.CropRect;
 import com.sufi.pancardresizer.dto.RenderPhotoRequest;
 import com.sufi.pancardresizer.dto.RenderSignatureRequest;
 import com.sufi.pancardresizer.exception.AppException;
 import com.sufi.pancardresizer.model.StoredFile;
+import com.sufi.pancardresizer.util.ImageTransform;
 import com.sufi.pancardresizer.util.ImageUtils;
+import com.sufi.pancardresizer.util.JpegProbe;
+import com.sufi.pancardresizer.util.JpegSizeEstimator;
+import com.sufi.pancardresizer.util.QualitySearch;
+import com.sufi.pancardresizer.util.RegionDecoder;
+import com.sufi.pancardresizer.util.SingleFlight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
+import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.time.Instant;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 
 @Service
 public class ImageService {
+    private static final Logger log = LoggerFactory.getLogger(ImageService.class);
+
     public static final int DPI = 200;
     public static final int PHOTO_WIDTH_PX = (int) Math.round(2.5 / 2.54 * DPI);
     public static final int PHOTO_HEIGHT_PX = (int) Math.round(3.5 / 2.54 * DPI);
@@ -24,11 +37,28 @@ public class ImageService {
     public static final int SIGN_HEIGHT_PX = (int) Math.round(2.0 / 2.54 * DPI);
 
     private final StorageService storageService;
-    private final Map<String, SizeCacheEntry> sizeCache = new ConcurrentHashMap<>();
-    private static final long SIZE_CACHE_TTL_MS = 10 * 60 * 1000L;
+    private final DecodedImageCache decodedImageCache;
+    private final AppProperties properties;
+    private final ForkJoinPool workerPool;
+    private final RenderCache renderCache;
+    private final SingleFlight<String, byte[]> renders = new SingleFlight<>();
+    private final SingleFlight<String, SizeResult> sizes = new SingleFlight<>();
+    private static final int SIZE_PROXY_PX = 512;
+    private static final int MIN_EXACT_SIDE_PX = 120;
+    private static final double MIN_EXACT_SCALE = Math.pow(0.9, 9);
+    private static final int MAX_SCALE_ROUNDS = 4;
+    private static final double SIZE_SCALE_EXPONENT = 1.8;
+    private static final double SCALE_TARGET_RATIO = 0.97;
+    private static final double MIN_SCALE_FILL = 0.85;
+    private static final double SCALE_RESOLUTION = 0.02;
 
-    public ImageService(StorageService storageService) {
+    public ImageService(StorageService storageService, DecodedImageCache decodedImageCache, RenderCache renderCache,
+                        AppProperties properties, ForkJoinPool imageWorkerPool) {
         this.storageService = storageService;
+        this.decodedImageCache = decodedImageCache;
+        this.renderCache = renderCache;
+        this.properties = properties;
+        this.workerPool = imageWorkerPool;
     }
 
     public byte[] renderPhoto(RenderPhotoRequest request) {
@@ -36,64 +66,85 @@ public class ImageService {
         if (maxKb != 30 && maxKb != 50) {
             maxKb = 50;
         }
-        BufferedImage base = loadImage(request.getFileId());
-        BufferedImage processed = applyOperations(base, request.getRotate(), request.getCrop());
-        BufferedImage resized;
-        try {
-            resized = ImageUtils.resize(processed, PHOTO_WIDTH_PX, PHOTO_HEIGHT_PX);
-        } catch (IOException e) {
-            throw new AppException("Failed to resize image", "resize_failed");
-        }
-        return compressToMaxBytes(resized, DPI, maxKb * 1024);
+        int safeKb = maxKb;
+        return coalesce(renders, buildRenderKey("photo", request.getFileId(), request.getRotate(), request.getCrop(), safeKb),
+            () -> renderPhoto(request, safeKb));
     }
 
     public byte[] renderSignature(RenderSignatureRequest request) {
-        BufferedImage base = loadImage(request.getFileId());
-        BufferedImage processed = applyOperations(base, request.getRotate(), request.getCrop());
-        if (request.isBw()) {
-            processed = ImageUtils.toBlackAndWhite(processed);
-        }
-        BufferedImage resized;
-        try {
-            resized = ImageUtils.resize(processed, SIGN_WIDTH_PX, SIGN_HEIGHT_PX);
-        } catch (IOException e) {
-            throw new AppException("Failed to resize image", "resize_failed");
-        }
-        return compressToMaxBytes(resized, DPI, 50 * 1024);
+        return coalesce(renders, buildRenderKey("signature", request.getFileId(), request.getRotate(), request.getCrop(), request.isBw()),
+            () -> renderSignatureImage(request));
     }
 
     public byte[] renderPhotoByKb(RenderPhotoRequest request) {
         int targetKb = request.getMaxKb() <= 0 ? 100 : request.getMaxKb();
-        targetKb = Math.max(10, Math.min(500, targetKb));
-        BufferedImage base = loadImage(request.getFileId());
-        BufferedImage processed = applyOperations(base, request.getRotate(), request.getCrop());
-        return compressToExactBytes(processed, DPI, targetKb * 1024);
+        int safeKb = Math.max(10, Math.min(500, targetKb));
+        return coalesce(renders, buildRenderKey("kb", request.getFileId(), request.getRotate(), request.getCrop(), safeKb), () -> {
+            BufferedImage base = loadImage(request.getFileId());
+            BufferedImage processed = applyOperations(base, request.getRotate(), request.getCrop());
+            return compressToExactBytes(processed, DPI, safeKb * 1024);
+        });
     }
 
     public byte[] renderPhotoByKbBestEffort(RenderPhotoRequest request) {
         int targetKb = request.getMaxKb() <= 0 ? 100 : request.getMaxKb();
-        targetKb = Math.max(10, Math.min(500, targetKb));
-        BufferedImage base = loadImage(request.getFileId());
-        BufferedImage processed = applyOperations(base, request.getRotate(), request.getCrop());
-        return compressToMaxBytes(processed, DPI, targetKb * 1024);
+        int safeKb = Math.max(10, Math.min(500, targetKb));
+        return coalesce(renders, buildRenderKey("kbBestEffort", request.getFileId(), request.getRotate(), request.getCrop(), safeKb), () -> {
+            BufferedImage base = loadImage(request.getFileId());
+            BufferedImage processed = applyOperations(base, request.getRotate(), request.getCrop());
+            return compressToMaxBytes(processed, DPI, safeKb * 1024);
+        });
     }
 
-    public SizeResult getKbSize(RenderPhotoRequest request) {
+    public SizeResult getKbSize(RenderPhotoRequest request, boolean exact) {
+        String contentHash = storageService.getFile(request.getFileId()).getContentHash();
         String key = buildSizeKey(request);
-        SizeCacheEntry cached = sizeCache.get(key);
-        if (cached != null && !cached.isExpired()) {
-            return new SizeResult(cached.data.length, cached.exact);
+        SizeResult cached = renderCache.getIfPresent(RenderCache.Region.KB_SIZE, contentHash, key);
+        if (cached != null && (cached.isExact() || !exact)) {
+            return cached;
         }
 
+        return coalesce(sizes, contentHash + '|' + key + '|' + exact, () -> {
+            SizeResult result;
+            if (exact) {
+                try {
+                    byte[] data = renderPhotoByKb(request);
+                    result = new SizeResult(data.length, true, 0);
+                } catch (AppException ex) {
+                    result = estimateKbSize(request);
+                }
+            } else {
+                result = estimateKbSize(request);
+            }
+            renderCache.put(RenderCache.Region.KB_SIZE, contentHash, key, result);
+            return result;
+        });
+    }
+
+    private byte[] renderPhoto(RenderPhotoRequest request, int maxKb) {
+        BufferedImage base = loadImage(request.getFileId());
+        BufferedImage resized = operations(base, request.getRotate(), request.getCrop())
+            .resize(PHOTO_WIDTH_PX, PHOTO_HEIGHT_PX)
+            .render(base, workerPool);
+        return compressToMaxBytes(resized, DPI, maxKb * 1024);
+    }
+
+    private byte[] renderSignatureImage(RenderSignatureRequest request) {
+        BufferedImage base = loadImage(request.getFileId());
+        BufferedImage resized;
         try {
-            byte[] data = renderPhotoByKb(request);
-            sizeCache.put(key, new SizeCacheEntry(data, true));
-            return new SizeResult(data.length, true);
-        } catch (AppException ex) {
-            byte[] data = renderPhotoByKbFastSize(request);
-            sizeCache.put(key, new SizeCacheEntry(data, false));
-            return new SizeResult(data.length, false);
+            if (request.isBw()) {
+                BufferedImage processed = ImageUtils.toBlackAndWhite(applyOperations(base, request.getRotate(), request.getCrop()), workerPool);
+                resized = ImageUtils.resize(processed, SIGN_WIDTH_PX, SIGN_HEIGHT_PX);
+            } else {
+                resized = operations(base, request.getRotate(), request.getCrop())
+                    .resize(SIGN_WIDTH_PX, SIGN_HEIGHT_PX)
+                    .render(base, workerPool);
+            }
+        } catch (IOException e) {
+            throw new AppException("Failed to resize image", "resize_failed");
         }
+        return compressToMaxBytes(resized, DPI, 50 * 1024);
     }
 
     private BufferedImage loadImage(String fileId) {
@@ -101,23 +152,25 @@ public class ImageService {
         if (stored.getFormat() == null || !stored.getFormat().equals("image")) {
             throw new AppException("Unsupported file for image render", "image_required");
         }
-        try {
-            BufferedImage img = ImageIO.read(stored.getPath().toFile());
-            if (img == null) {
-                throw new AppException("Invalid image file", "invalid_image");
-            }
-            return img;
-        } catch (IOException e) {
-            throw new AppException("Failed to read image", "image_read_failed");
-        }
+        return decodedImageCache.get(stored);
     }
 
     private BufferedImage applyOperations(BufferedImage src, int rotate, CropRect crop) {
-        BufferedImage image = ImageUtils.rotate(src, rotate);
-        if (crop != null) {
-            image = ImageUtils.crop(image, crop.getX(), crop.getY(), crop.getWidth(), crop.getHeight());
+        return operations(src, rotate, crop).render(src, workerPool);
+    }
+
+    // coalesced work reports interruption as a CancellationException; callers see the usual API error
+    private static <V> V coalesce(SingleFlight<String, V> flights, String key, Supplier<V> work) {
+        try {
+            return flights.execute(key, work);
+        } catch (CancellationException e) {
+            throw new AppException("Request interrupted", "request_interrupted");
         }
-        return ImageUtils.toRgb(image);
+    }
+
+    private ImageTransform operations(BufferedImage src, int rotate, CropRect crop) {
+        Rectangle cropRect = crop == null ? null : new Rectangle(crop.getX(), crop.getY(), crop.getWidth(), crop.getHeight());
+        return ImageTransform.of(src).rotate(rotate).crop(cropRect);
     }
 
     private byte[] compressToMaxBytes(BufferedImage image, int dpi, int maxBytes) {
@@ -125,118 +178,212 @@ public class ImageService {
     }
 
     private byte[] compressToExactBytes(BufferedImage image, int dpi, int targetBytes) {
-        BufferedImage current = image;
-        byte[] data = null;
+        QualitySearch.Result full = search(image, probeFor(image, dpi, targetBytes), targetBytes, 8);
+        if (full.fits()) {
+            return ImageUtils.padJpegToSize(full.getData(), targetBytes);
+        }
 
-        for (int i = 0; i < 10; i++) {
-            data = compressToMaxBytes(current, dpi, targetBytes);
-            if (data.length <= targetBytes) {
-                return ImageUtils.padJpegToSize(data, targetBytes);
-            }
-            if (current.getWidth() < 120 || current.getHeight() < 120) {
-                break;
+        double minScale = minExactScale(image.getWidth(), image.getHeight());
+        if (minScale >= 1.0) {
+            throw new AppException("Target size not reachable. Try a smaller KB value.", "target_size_unreachable");
+        }
+
+        double goal = targetBytes * SCALE_TARGET_RATIO;
+        ScaledProbe over = new ScaledProbe(1.0, null, null, full.getData().length);
+        full = null;
+        ScaledProbe previousOver = null;
+        ScaledProbe fit = null;
+        int rounds = 0;
+        while (rounds < MAX_SCALE_ROUNDS) {
+            double scale;
+            if (fit == null) {
+                double exponent = previousOver == null ? SIZE_SCALE_EXPONENT : exponent(previousOver, over);
+                scale = over.scale * Math.pow(goal / over.size, 1.0 / exponent);
+                scale = Math.max(minScale, Math.min(over.scale * 0.97, scale));
+            } else {
+                scale = fit.scale * Math.pow(goal / fit.size, 1.0 / exponent(fit, over));
+                double margin = (over.scale - fit.scale) * 0.1;
+                scale = Math.max(fit.scale + margin, Math.min(over.scale - margin, scale));
             }
-            try {
-                current = ImageUtils.zoom(current, 0.9);
-            } catch (IOException e) {
-                throw new AppException("Failed to resize image", "resize_failed");
+            ScaledProbe sample = probeAtScale(image, dpi, scale, targetBytes);
+            rounds++;
+            if (sample.size <= targetBytes) {
+                fit = sample;
+                if (sample.size >= targetBytes * MIN_SCALE_FILL || over.scale - sample.scale < SCALE_RESOLUTION) {
+                    break;
+                }
+            } else {
+                if (scale <= minScale) {
+                    break;
+                }
+                // a rejected round only contributes its scale and size to the model
+                previousOver = over;
+                over = sample.sizeOnly();
+                if (fit != null && over.scale - fit.scale < SCALE_RESOLUTION) {
+                    break;
+                }
             }
         }
 
-        if (data != null && data.length <= targetBytes) {
-            return ImageUtils.padJpegToSize(data, targetBytes);
+        if (fit == null && over.scale > minScale) {
+            // the planner ran out of rounds while still too large; the smallest allowed scale decides
+            ScaledProbe sample = probeAtScale(image, dpi, minScale, targetBytes);
+            rounds++;
+            if (sample.size <= targetBytes) {
+                fit = sample;
+            }
+        }
+        if (fit == null) {
+            throw new AppException("Target size not reachable. Try a smaller KB value.", "target_size_unreachable");
+        }
+        QualitySearch.Result result = search(fit.image, fit.probe, targetBytes, 8);
+        log.debug("JPEG exact-size plan {}x{} -> scale={} after {} scale probes", image.getWidth(), image.getHeight(), fit.scale, rounds);
+        if (!result.fits()) {
+            throw new AppException("Target size not reachable. Try a smaller KB value.", "target_size_unreachable");
         }
-        throw new AppException("Target size not reachable. Try a smaller KB value.", "target_size_unreachable");
+        return ImageUtils.padJpegToSize(result.getData(), targetBytes);
     }
 
-    private byte[] compressToMaxBytes(BufferedImage image, int dpi, int maxBytes, int iterations) {
-        float low = 0.2f;
-        float high = 0.95f;
-        byte[] best = null;
-        int safeIterations = Math.max(1, iterations);
-        for (int i = 0; i < safeIterations; i++) {
-            float mid = (low + high) / 2f;
-            byte[] data;
-            try {
-                data = ImageUtils.writeJpegWithQualityAndDpi(image, mid, dpi);
-            } catch (IOException e) {
-                throw new AppException("Failed to encode image", "encode_failed");
-            }
-            if (data.length <= maxBytes) {
-                best = data;
-                low = mid;
-            } else {
-                high = mid;
-            }
+    private static double minExactScale(int width, int height) {
+        return Math.max(MIN_EXACT_SCALE, Math.min(1.0, 0.9 * MIN_EXACT_SIDE_PX / Math.min(width, height)));
+    }
+
+    private ScaledProbe probeAtScale(BufferedImage image, int dpi, double scale, int maxBytes) {
+        try {
+            BufferedImage scaled = ImageUtils.zoom(image, scale);
+            JpegProbe probe = probeFor(scaled, dpi, maxBytes);
+            return new ScaledProbe(scale, scaled, probe, probe.size(QualitySearch.MIN_QUALITY));
+        } catch (IOException e) {
+            throw new AppException("Failed to resize image", "resize_failed");
         }
-        if (best != null) {
-            return best;
+    }
+
+    private static double exponent(ScaledProbe a, ScaledProbe b) {
+        double exponent = Math.log((double) b.size / a.size) / Math.log(b.scale / a.scale);
+        if (!(exponent > 0.5) || exponent > 4.0) {
+            return SIZE_SCALE_EXPONENT;
         }
+        return exponent;
+    }
+
+    private byte[] compressToMaxBytes(BufferedImage image, int dpi, int maxBytes, int iterations) {
+        return search(image, probeFor(image, dpi, maxBytes), maxBytes, iterations).getData();
+    }
+
+    private QualitySearch.Result search(BufferedImage image, JpegProbe probe, int maxBytes, int iterations) {
+        QualitySearch.Result result;
         try {
-            return ImageUtils.writeJpegWithQualityAndDpi(image, low, dpi);
+            result = properties.getJpeg().isParallelSearch()
+                ? QualitySearch.searchParallel(probe, maxBytes, iterations, workerPool)
+                : QualitySearch.search(probe, maxBytes, iterations);
         } catch (IOException e) {
             throw new AppException("Failed to encode image", "encode_failed");
         }
+        log.debug("JPEG search {}x{} maxBytes={} -> {} bytes at q={} in {} encodes",
+            image.getWidth(), image.getHeight(), maxBytes, result.getData().length, result.getQuality(), result.getEncodes());
+        return result;
     }
 
-    private byte[] renderPhotoByKbFastSize(RenderPhotoRequest request) {
+    private JpegProbe probeFor(BufferedImage image, int dpi, int maxBytes) {
+        long pixels = (long) image.getWidth() * image.getHeight();
+        if ("dct".equalsIgnoreCase(properties.getJpeg().getEncoder()) && pixels <= properties.getJpeg().getDctMaxPixels()) {
+            return JpegProbe.dct(image, dpi);
+        }
+        return JpegProbe.imageIo(image, dpi, maxBytes);
+    }
+
+    private SizeResult estimateKbSize(RenderPhotoRequest request) {
         int targetKb = request.getMaxKb() <= 0 ? 100 : request.getMaxKb();
         targetKb = Math.max(10, Math.min(500, targetKb));
-        BufferedImage base = loadImage(request.getFileId());
-        BufferedImage processed = applyOperations(base, request.getRotate(), request.getCrop());
+        int targetBytes = targetKb * 1024;
 
-        byte[] data = compressToMaxBytes(processed, DPI, targetKb * 1024, 4);
-        if (data.length <= targetKb * 1024) {
-            return data;
+        StoredFile stored = storageService.getFile(request.getFileId());
+        if (stored.getFormat() == null || !stored.getFormat().equals("image")) {
+            throw new AppException("Unsupported file for image render", "image_required");
         }
+        BufferedImage sampled;
+        int viewW;
+        int viewH;
+        if (stored.getWidth() == null || stored.getHeight() == null) {
+            sampled = applyOperations(decodedImageCache.get(stored), request.getRotate(), request.getCrop());
+            viewW = sampled.getWidth();
+            viewH = sampled.getHeight();
+        } else {
+            CropRect crop = request.getCrop();
+            Rectangle cropRect = crop == null ? null : new Rectangle(crop.getX(), crop.getY(), crop.getWidth(), crop.getHeight());
+            RegionDecoder.Plan plan = RegionDecoder.plan(stored.getWidth(), stored.getHeight(), request.getRotate(), cropRect,
+                SIZE_PROXY_PX * 2, SIZE_PROXY_PX * 2);
+            BufferedImage cached = decodedImageCache.getIfPresent(stored);
+            try {
+                sampled = cached != null
+                    ? RegionDecoder.render(cached, plan.fromFullImage())
+                    : RegionDecoder.render(RegionDecoder.read(stored.getPath(), plan), plan);
+            } catch (IOException e) {
+                throw new AppException("Failed to read image", "image_read_failed");
+            }
+            viewW = plan.getView().width;
+            viewH = plan.getView().height;
+        }
+
+        JpegSizeEstimator.Estimate estimate;
         try {
-            BufferedImage smaller = ImageUtils.zoom(processed, 0.9);
-            return compressToMaxBytes(smaller, DPI, targetKb * 1024, 4);
+            BufferedImage proxy = Math.max(sampled.getWidth(), sampled.getHeight()) > SIZE_PROXY_PX
+                ? ImageUtils.resizeKeepAspect(sampled, SIZE_PROXY_PX, SIZE_PROXY_PX)
+                : sampled;
+            double proxyScale = (double) proxy.getWidth() / viewW;
+            estimate = JpegSizeEstimator.estimate(ImageUtils.toRgb(proxy), proxyScale, minExactScale(viewW, viewH),
+                QualitySearch.MIN_QUALITY, DPI);
         } catch (IOException e) {
-            throw new AppException("Failed to resize image", "resize_failed");
+            throw new AppException("Failed to encode image", "encode_failed");
+        }
+        if (estimate.getSizeBytes() <= targetBytes) {
+            return new SizeResult(targetBytes, false, Math.max(0, estimate.getSizeBytes() + estimate.getErrorBytes() - targetBytes));
         }
+        return new SizeResult(estimate.getSizeBytes(), false, estimate.getErrorBytes());
     }
 
     private String buildSizeKey(RenderPhotoRequest request) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(request.getFileId()).append('|')
-            .append(request.getRotate()).append('|')
-            .append(request.getMaxKb()).append('|');
-        CropRect crop = request.getCrop();
+        return request.getRotate() + "|" + request.getMaxKb() + "|" + buildCropKey(request.getCrop());
+    }
+
+    private String buildRenderKey(String kind, String fileId, int rotate, CropRect crop, Object option) {
+        return kind + "|" + storageService.getFile(fileId).getContentHash() + "|" + rotate + "|" + buildCropKey(crop) + "|" + option;
+    }
+
+    private static String buildCropKey(CropRect crop) {
         if (crop == null) {
-            sb.append("nocrop");
-        } else {
-            sb.append(crop.getX()).append(',')
-                .append(crop.getY()).append(',')
-                .append(crop.getWidth()).append(',')
-                .append(crop.getHeight());
+            return "nocrop";
         }
-        return sb.toString();
+        return crop.getX() + "," + crop.getY() + "," + crop.getWidth() + "," + crop.getHeight();
     }
 
-    private static class SizeCacheEntry {
-        private final byte[] data;
-        private final boolean exact;
-        private final long createdAt;
+    private static class ScaledProbe {
+        private final double scale;
+        private final BufferedImage image;
+        private final JpegProbe probe;
+        private final int size;
 
-        private SizeCacheEntry(byte[] data, boolean exact) {
-            this.data = data;
-            this.exact = exact;
-            this.createdAt = Instant.now().toEpochMilli();
+        private ScaledProbe(double scale, BufferedImage image, JpegProbe probe, int size) {
+            this.scale = scale;
+            this.image = image;
+            this.probe = probe;
+            this.size = size;
         }
 
-        private boolean isExpired() {
-            return (Instant.now().toEpochMilli() - createdAt) > SIZE_CACHE_TTL_MS;
+        private ScaledProbe sizeOnly() {
+            return new ScaledProbe(scale, null, null, size);
         }
     }
 
     public static class SizeResult {
         private final long sizeBytes;
         private final boolean exact;
+        private final long errorBytes;
 
-        public SizeResult(long sizeBytes, boolean exact) {
+        public SizeResult(long sizeBytes, boolean exact, long errorBytes) {
             this.sizeBytes = sizeBytes;
             this.exact = exact;
+            this.errorBytes = errorBytes;
         }
 
         public long getSizeBytes() {
@@ -246,5 +393,9 @@ public class ImageService {
         public boolean isExact() {
             return exact;
         }
+
+        public long getErrorBytes() {
+            return errorBytes;
+        }
     }
 }
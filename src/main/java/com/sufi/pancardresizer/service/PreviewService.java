@@ -1,50 +1,150 @@
 package com.sufi.pancardresizer.service;
 
+import com.sufi.pancardresizer.cache.DecodedImageCache;
+import com.sufi.pancardresizer.cache.PdfDocumentCache;
+import com.sufi.pancardresizer.cache.RenderCache;
 import com.sufi.pancardresizer.dto.CropRect;
 import com.sufi.pancardresizer.dto.PreviewRequest;
 import com.sufi.pancardresizer.exception.AppException;
+import com.sufi.pancardresizer.model.PdfInfo;
 import com.sufi.pancardresizer.model.StoredFile;
+import com.sufi.pancardresizer.util.ImageTransform;
 import com.sufi.pancardresizer.util.ImageUtils;
-import org.springframework.cache.annotation.Cacheable;
+import com.sufi.pancardresizer.util.RegionDecoder;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
+import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.CancellationException;
 
 @Service
 public class PreviewService {
+    private static final int PREVIEW_MAX_PX = 900;
+    private static final int PREVIEW_MIN_PX = 64;
+    private static final int PREVIEW_LIMIT_PX = 1600;
+    private static final float PDF_MIN_DPI = 18f;
+    private static final float PDF_MAX_DPI = 240f;
+
     private final StorageService storageService;
+    private final DecodedImageCache decodedImageCache;
+    private final PdfDocumentCache pdfDocuments;
+    private final RenderCache renderCache;
 
-    public PreviewService(StorageService storageService) {
+    public PreviewService(StorageService storageService, DecodedImageCache decodedImageCache, PdfDocumentCache pdfDocuments,
+                          RenderCache renderCache) {
         this.storageService = storageService;
+        this.decodedImageCache = decodedImageCache;
+        this.pdfDocuments = pdfDocuments;
+        this.renderCache = renderCache;
     }
 
-    @Cacheable(value = "previewCache", key = "#request.fileId + ':' + #request.rotate + ':' + #request.zoom + ':' + (#request.crop == null ? 'none' : (#request.crop.x + ',' + #request.crop.y + ',' + #request.crop.width + ',' + #request.crop.height))")
     public byte[] buildPreview(PreviewRequest request) {
         StoredFile stored = storageService.getFile(request.getFileId());
-        if (stored.getFormat() == null || !stored.getFormat().equals("image")) {
-            throw new AppException("Preview only supports images", "preview_unsupported");
+        validate(stored, request);
+        try {
+            if ("pdf".equals(stored.getFormat())) {
+                return renderCache.get(RenderCache.Region.PDF_PREVIEW, stored.getContentHash(), buildKey(stored, request), () -> renderPdf(stored, request));
+            }
+            return renderCache.get(RenderCache.Region.PREVIEW, stored.getContentHash(), buildKey(stored, request), () -> render(stored, request));
+        } catch (CancellationException e) {
+            throw new AppException("Request interrupted", "request_interrupted");
         }
+    }
 
-        BufferedImage src;
+    // requests that can never render get their error, not a 304, even when the client sends a matching ETag
+    public String previewETag(PreviewRequest request) {
+        StoredFile stored = storageService.getFile(request.getFileId());
+        validate(stored, request);
         try {
-            src = ImageIO.read(stored.getPath().toFile());
-        } catch (IOException e) {
-            throw new AppException("Failed to read image", "image_read_failed");
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(stored.getContentHash().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '|');
+            digest.update(buildKey(stored, request).getBytes(StandardCharsets.UTF_8));
+            return "\"" + HexFormat.of().formatHex(digest.digest(), 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new AppException("Failed to build preview", "preview_failed");
+        }
+    }
+
+    private void validate(StoredFile stored, PreviewRequest request) {
+        if ("pdf".equals(stored.getFormat())) {
+            int pageIndex = request.getPage();
+            if (pageIndex < 0 || pageIndex >= pdfDocuments.info(stored).getPageCount()) {
+                throw new AppException("Page out of range", "page_out_of_range");
+            }
+        } else if (stored.getFormat() == null || !stored.getFormat().equals("image")) {
+            throw new AppException("Preview only supports images and PDFs", "preview_unsupported");
         }
+    }
 
-        BufferedImage image = ImageUtils.rotate(src, request.getRotate());
+    private String buildKey(StoredFile stored, PreviewRequest request) {
+        if ("pdf".equals(stored.getFormat())) {
+            return "pdf:" + request.getPage() + ":" + request.getRotate() + ":" + previewSize(request);
+        }
         CropRect crop = request.getCrop();
-        if (crop != null) {
-            image = ImageUtils.crop(image, crop.getX(), crop.getY(), crop.getWidth(), crop.getHeight());
+        return request.getRotate() + ":" + request.getZoom() + ":"
+            + (crop == null ? "none" : crop.getX() + "," + crop.getY() + "," + crop.getWidth() + "," + crop.getHeight())
+            + ":" + previewSize(request);
+    }
+
+    private static int previewSize(PreviewRequest request) {
+        if (request.getSize() <= 0) {
+            return PREVIEW_MAX_PX;
+        }
+        return Math.max(PREVIEW_MIN_PX, Math.min(PREVIEW_LIMIT_PX, request.getSize()));
+    }
+
+    // pages are rasterized at just the DPI the viewport needs; crop and zoom only apply to images
+    private byte[] renderPdf(StoredFile stored, PreviewRequest request) {
+        int pageIndex = request.getPage();
+        PdfInfo.Page page = pdfDocuments.info(stored).getPage(pageIndex);
+        int size = previewSize(request);
+        boolean sideways = page.getRotation() % 180 != 0;
+        float widthPt = sideways ? page.getHeightPt() : page.getWidthPt();
+        float heightPt = sideways ? page.getWidthPt() : page.getHeightPt();
+        float dpi = 72f * Math.min(size / Math.max(1f, widthPt), size / Math.max(1f, heightPt));
+        dpi = Math.max(PDF_MIN_DPI, Math.min(PDF_MAX_DPI, dpi));
+
+        BufferedImage image;
+        try {
+            PDDocument doc = pdfDocuments.borrow(stored);
+            try {
+                PDFRenderer renderer = new PDFRenderer(doc);
+                renderer.setSubsamplingAllowed(true);
+                image = renderer.renderImageWithDPI(pageIndex, dpi, ImageType.RGB);
+            } finally {
+                pdfDocuments.release(stored, doc);
+            }
+        } catch (IOException e) {
+            throw new AppException("Failed to read PDF", "pdf_read_failed");
         }
+
+        image = ImageTransform.of(image)
+            .rotate(request.getRotate())
+            .fit(size, size)
+            .render(image);
         try {
-            image = ImageUtils.zoom(image, request.getZoom());
-            image = ImageUtils.resizeKeepAspect(image, 900, 900);
+            return ImageUtils.writeJpegWithQualityAndDpi(image, 0.75f, 96);
         } catch (IOException e) {
             throw new AppException("Failed to build preview", "preview_failed");
         }
+    }
+
+    private byte[] render(StoredFile stored, PreviewRequest request) {
+        BufferedImage image;
+        try {
+            image = renderImage(stored, request);
+        } catch (IOException e) {
+            throw new AppException("Failed to read image", "image_read_failed");
+        }
 
         try {
             return ImageUtils.writeJpegWithQualityAndDpi(image, 0.75f, 96);
@@ -52,4 +152,29 @@ public class PreviewService {
             throw new AppException("Failed to build preview", "preview_failed");
         }
     }
+
+    private BufferedImage renderImage(StoredFile stored, PreviewRequest request) throws IOException {
+        if (stored.getWidth() == null || stored.getHeight() == null) {
+            BufferedImage decoded = decodedImageCache.get(stored);
+            return transform(decoded.getWidth(), decoded.getHeight(), request).render(decoded);
+        }
+
+        ImageTransform transform = transform(stored.getWidth(), stored.getHeight(), request);
+        BufferedImage cached = decodedImageCache.getIfPresent(stored);
+        if (cached != null) {
+            return transform.render(cached);
+        }
+        RegionDecoder.Plan plan = RegionDecoder.plan(transform);
+        return RegionDecoder.renderOutput(RegionDecoder.read(stored.getPath(), plan), plan);
+    }
+
+    private ImageTransform transform(int width, int height, PreviewRequest request) {
+        CropRect crop = request.getCrop();
+        Rectangle cropRect = crop == null ? null : new Rectangle(crop.getX(), crop.getY(), crop.getWidth(), crop.getHeight());
+        return ImageTransform.of(width, height)
+            .rotate(request.getRotate())
+            .crop(cropRect)
+            .zoom(request.getZoom())
+            .fit(previewSize(request), previewSize(request));
+    }
 }
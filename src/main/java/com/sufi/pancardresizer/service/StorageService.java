@@ -3,29 +3,44 @@ package com.sufi.pancardresizer.service;
 import com.sufi.pancardresizer.config.AppProperties;
 import com.sufi.pancardresizer.exception.AppException;
 import com.sufi.pancardresizer.model.StoredFile;
+import com.sufi.pancardresizer.util.ImageProbe;
 import org.apache.commons.io.FilenameUtils;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 @Service
 public class StorageService {
     private final AppProperties properties;
     private final Map<String, StoredFile> store = new ConcurrentHashMap<>();
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
     private final Path baseDir;
+    private final ForkJoinPool workerPool;
+    private final List<Consumer<StoredFile>> storedListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<String>> contentRemovalListeners = new CopyOnWriteArrayList<>();
 
-    public StorageService(AppProperties properties) throws IOException {
+    public StorageService(AppProperties properties, ForkJoinPool imageWorkerPool) throws IOException {
         this.properties = properties;
+        this.workerPool = imageWorkerPool;
         this.baseDir = Paths.get(properties.getTempDir());
         Files.createDirectories(this.baseDir);
     }
@@ -36,7 +51,7 @@ public class StorageService {
             throw new AppException("Total upload exceeds limit", "upload_too_large");
         }
 
-        List<StoredFile> result = new ArrayList<>();
+        List<Callable<StoredFile>> tasks = new ArrayList<>();
         for (MultipartFile file : files) {
             if (file.isEmpty()) {
                 continue;
@@ -51,39 +66,12 @@ public class StorageService {
             if (!isAllowed(ext, contentType)) {
                 throw new AppException("Unsupported file type", "unsupported_type");
             }
+            tasks.add(() -> storeFile(file, originalName, ext, contentType));
+        }
 
-            String fileId = UUID.randomUUID().toString();
-            String safeExt = ext.isEmpty() ? "bin" : ext;
-            Path target = baseDir.resolve(fileId + "." + safeExt);
-
-            try (InputStream is = file.getInputStream()) {
-                Files.copy(is, target);
-            } catch (IOException e) {
-                throw new AppException("Failed to store file", "store_failed");
-            }
-
-            Integer width = null;
-            Integer height = null;
-            String format = null;
-            if (isImage(ext, contentType)) {
-                try {
-                    BufferedImage img = ImageIO.read(target.toFile());
-                    if (img == null) {
-                        throw new AppException("Invalid image file", "invalid_image");
-                    }
-                    width = img.getWidth();
-                    height = img.getHeight();
-                    format = "image";
-                } catch (IOException e) {
-                    throw new AppException("Invalid image file", "invalid_image");
-                }
-            } else if (isPdf(ext, contentType)) {
-                format = "pdf";
-            }
-
-            StoredFile stored = new StoredFile(fileId, originalName, target, contentType, file.getSize(), width, height, format);
-            store.put(fileId, stored);
-            result.add(stored);
+        List<StoredFile> result = runAll(tasks);
+        for (StoredFile stored : result) {
+            store.put(stored.getFileId(), stored);
         }
         return result;
     }
@@ -99,13 +87,18 @@ public class StorageService {
     public void removeFile(String fileId) {
         StoredFile stored = store.remove(fileId);
         if (stored != null) {
-            try {
-                Files.deleteIfExists(stored.getPath());
-            } catch (IOException ignored) {
-            }
+            release(stored);
         }
     }
 
+    public void addStoredListener(Consumer<StoredFile> listener) {
+        storedListeners.add(listener);
+    }
+
+    public void addContentRemovalListener(Consumer<String> listener) {
+        contentRemovalListeners.add(listener);
+    }
+
     public void cleanupExpired() {
         Instant cutoff = Instant.now().minusSeconds(properties.getCleanupMinutes() * 60L);
         for (StoredFile stored : new ArrayList<>(store.values())) {
@@ -115,6 +108,165 @@ public class StorageService {
         }
     }
 
+    private StoredFile storeFile(MultipartFile file, String originalName, String ext, String contentType) {
+        String fileId = UUID.randomUUID().toString();
+        String safeExt = ext.isEmpty() ? "bin" : ext;
+        Path temp = baseDir.resolve("upload-" + fileId + ".tmp");
+
+        String hash;
+        try (InputStream is = file.getInputStream();
+             DigestInputStream dis = new DigestInputStream(is, MessageDigest.getInstance("SHA-256"))) {
+            Files.copy(dis, temp);
+            hash = HexFormat.of().formatHex(dis.getMessageDigest().digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            deleteQuietly(temp);
+            throw new AppException("Failed to store file", "store_failed");
+        }
+
+        boolean image = isImage(ext, contentType);
+        Blob blob = acquire(hash);
+        if (blob != null) {
+            deleteQuietly(temp);
+        } else {
+            ImageProbe.Result probe;
+            try {
+                probe = validate(temp, image);
+            } catch (AppException e) {
+                deleteQuietly(temp);
+                throw e;
+            }
+            blob = register(hash, temp, baseDir.resolve(hash + "." + safeExt), probe, image);
+        }
+
+        StoredFile stored = new StoredFile(fileId, originalName, blob.path, contentType, file.getSize(), blob.width, blob.height, blob.format, hash);
+        if (!blob.format.equals(image ? "image" : "pdf")) {
+            release(stored);
+            throw image
+                ? new AppException("Invalid image file", "invalid_image")
+                : new AppException("Invalid PDF file", "invalid_pdf");
+        }
+        for (Consumer<StoredFile> listener : storedListeners) {
+            listener.accept(stored);
+        }
+        return stored;
+    }
+
+    private ImageProbe.Result validate(Path path, boolean image) {
+        ImageProbe.Result probe;
+        try {
+            probe = ImageProbe.probe(path);
+        } catch (IOException e) {
+            throw new AppException("Invalid image file", "invalid_image");
+        }
+        if (image) {
+            if (probe.isPdf() || !probe.hasDimensions()) {
+                throw new AppException("Invalid image file", "invalid_image");
+            }
+            if ((long) probe.getWidth() * probe.getHeight() > properties.getUpload().getMaxImagePixels()) {
+                throw new AppException("Image dimensions exceed limit", "image_too_large");
+            }
+        } else if (!probe.isPdf()) {
+            throw new AppException("Invalid PDF file", "invalid_pdf");
+        }
+        return probe;
+    }
+
+    private Blob acquire(String hash) {
+        return blobs.computeIfPresent(hash, (key, blob) -> {
+            blob.refCount++;
+            return blob;
+        });
+    }
+
+    private Blob register(String hash, Path temp, Path target, ImageProbe.Result probe, boolean image) {
+        return blobs.compute(hash, (key, existing) -> {
+            if (existing != null) {
+                existing.refCount++;
+                deleteQuietly(temp);
+                return existing;
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                deleteQuietly(temp);
+                throw new AppException("Failed to store file", "store_failed");
+            }
+            return image
+                ? new Blob(target, probe.getWidth(), probe.getHeight(), "image")
+                : new Blob(target, null, null, "pdf");
+        });
+    }
+
+    private void release(StoredFile stored) {
+        AtomicBoolean deleted = new AtomicBoolean(false);
+        blobs.computeIfPresent(stored.getContentHash(), (key, blob) -> {
+            blob.refCount--;
+            if (blob.refCount > 0) {
+                return blob;
+            }
+            deleteQuietly(blob.path);
+            deleted.set(true);
+            return null;
+        });
+        if (deleted.get()) {
+            for (Consumer<String> listener : contentRemovalListeners) {
+                listener.accept(stored.getContentHash());
+            }
+        }
+    }
+
+    private List<StoredFile> runAll(List<Callable<StoredFile>> tasks) {
+        if (tasks.size() <= 1) {
+            List<StoredFile> result = new ArrayList<>();
+            for (Callable<StoredFile> task : tasks) {
+                result.add(call(task));
+            }
+            return result;
+        }
+
+        List<Future<StoredFile>> futures = workerPool.invokeAll(tasks);
+        List<StoredFile> result = new ArrayList<>();
+        AppException failure = null;
+        for (Future<StoredFile> future : futures) {
+            try {
+                result.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof AppException app ? app : new AppException("Failed to store file", "store_failed");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new AppException("Failed to store file", "store_failed");
+                }
+            }
+        }
+        if (failure != null) {
+            for (StoredFile stored : result) {
+                release(stored);
+            }
+            throw failure;
+        }
+        return result;
+    }
+
+    private StoredFile call(Callable<StoredFile> task) {
+        try {
+            return task.call();
+        } catch (AppException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AppException("Failed to store file", "store_failed");
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
     private boolean isAllowed(String ext, String contentType) {
         return isImage(ext, contentType) || isPdf(ext, contentType);
     }
@@ -126,4 +278,19 @@ public class StorageService {
     private boolean isPdf(String ext, String contentType) {
         return contentType.equals("application/pdf") || ext.equals("pdf");
     }
+
+    private static class Blob {
+        private final Path path;
+        private final Integer width;
+        private final Integer height;
+        private final String format;
+        private int refCount = 1;
+
+        private Blob(Path path, Integer width, Integer height, String format) {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+        }
+    }
 }
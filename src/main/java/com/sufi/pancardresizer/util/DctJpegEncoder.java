@@ -0,0 +1,410 @@
+package com.sufi.pancardresizer.util;
+
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+import javax.imageio.plugins.jpeg.JPEGQTable;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+public final class DctJpegEncoder {
+    private static final int[] ZIGZAG = {
+        0, 1, 8, 16, 9, 2, 3, 10,
+        17, 24, 32, 25, 18, 11, 4, 5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13, 6, 7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+    private static final int BLOCKS_PER_MCU = 6;
+    private static final int COEFF_SCALE = 8;
+    private static final float[] COS = new float[64];
+    private static final HuffmanCodes DC_LUMA = new HuffmanCodes(JPEGHuffmanTable.StdDCLuminance);
+    private static final HuffmanCodes AC_LUMA = new HuffmanCodes(JPEGHuffmanTable.StdACLuminance);
+    private static final HuffmanCodes DC_CHROMA = new HuffmanCodes(JPEGHuffmanTable.StdDCChrominance);
+    private static final HuffmanCodes AC_CHROMA = new HuffmanCodes(JPEGHuffmanTable.StdACChrominance);
+
+    static {
+        for (int x = 0; x < 8; x++) {
+            for (int u = 0; u < 8; u++) {
+                double c = u == 0 ? Math.sqrt(0.5) : 1.0;
+                COS[x * 8 + u] = (float) (c / 2.0 * Math.cos((2 * x + 1) * u * Math.PI / 16.0));
+            }
+        }
+    }
+
+    private DctJpegEncoder() {
+    }
+
+    public static Prepared prepare(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int mcuCols = (w + 15) / 16;
+        int mcuRows = (h + 15) / 16;
+        int paddedW = mcuCols * 16;
+        short[] coeffs = new short[mcuCols * mcuRows * BLOCKS_PER_MCU * 64];
+
+        int[] row = new int[w];
+        float[] y = new float[16 * paddedW];
+        float[] cb = new float[16 * paddedW];
+        float[] cr = new float[16 * paddedW];
+        float[] cbSub = new float[8 * (paddedW / 2)];
+        float[] crSub = new float[8 * (paddedW / 2)];
+        float[] block = new float[64];
+        float[] tmp = new float[64];
+
+        int out = 0;
+        for (int mr = 0; mr < mcuRows; mr++) {
+            for (int ry = 0; ry < 16; ry++) {
+                int sy = Math.min(h - 1, mr * 16 + ry);
+                image.getRGB(0, sy, w, 1, row, 0, w);
+                int base = ry * paddedW;
+                for (int x = 0; x < paddedW; x++) {
+                    int rgb = row[Math.min(w - 1, x)];
+                    float r = (rgb >> 16) & 0xff;
+                    float g = (rgb >> 8) & 0xff;
+                    float b = rgb & 0xff;
+                    y[base + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+                    cb[base + x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                    cr[base + x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+                }
+            }
+            int subW = paddedW / 2;
+            for (int sy = 0; sy < 8; sy++) {
+                int r0 = (sy * 2) * paddedW;
+                int r1 = r0 + paddedW;
+                for (int sx = 0; sx < subW; sx++) {
+                    int x0 = sx * 2;
+                    cbSub[sy * subW + sx] = (cb[r0 + x0] + cb[r0 + x0 + 1] + cb[r1 + x0] + cb[r1 + x0 + 1]) * 0.25f;
+                    crSub[sy * subW + sx] = (cr[r0 + x0] + cr[r0 + x0 + 1] + cr[r1 + x0] + cr[r1 + x0 + 1]) * 0.25f;
+                }
+            }
+            for (int mc = 0; mc < mcuCols; mc++) {
+                int px = mc * 16;
+                for (int by = 0; by < 2; by++) {
+                    for (int bx = 0; bx < 2; bx++) {
+                        load(y, paddedW, px + bx * 8, by * 8, block);
+                        fdct(block, tmp, coeffs, out);
+                        out += 64;
+                    }
+                }
+                load(cbSub, subW, mc * 8, 0, block);
+                fdct(block, tmp, coeffs, out);
+                out += 64;
+                load(crSub, subW, mc * 8, 0, block);
+                fdct(block, tmp, coeffs, out);
+                out += 64;
+            }
+        }
+        return new Prepared(w, h, mcuCols * mcuRows, coeffs);
+    }
+
+    private static void load(float[] plane, int stride, int x0, int y0, float[] block) {
+        for (int yy = 0; yy < 8; yy++) {
+            System.arraycopy(plane, (y0 + yy) * stride + x0, block, yy * 8, 8);
+        }
+    }
+
+    private static void fdct(float[] block, float[] tmp, short[] coeffs, int offset) {
+        for (int yy = 0; yy < 8; yy++) {
+            int rowBase = yy * 8;
+            for (int u = 0; u < 8; u++) {
+                float sum = 0f;
+                for (int x = 0; x < 8; x++) {
+                    sum += block[rowBase + x] * COS[x * 8 + u];
+                }
+                tmp[rowBase + u] = sum;
+            }
+        }
+        for (int u = 0; u < 8; u++) {
+            for (int v = 0; v < 8; v++) {
+                float sum = 0f;
+                for (int yy = 0; yy < 8; yy++) {
+                    sum += tmp[yy * 8 + u] * COS[yy * 8 + v];
+                }
+                block[v * 8 + u] = sum;
+            }
+        }
+        for (int k = 0; k < 64; k++) {
+            coeffs[offset + k] = (short) Math.round(block[ZIGZAG[k]] * COEFF_SCALE);
+        }
+    }
+
+    static float linearQuality(float quality) {
+        if (quality <= 0.0f) {
+            quality = 0.01f;
+        }
+        if (quality > 1.0f) {
+            quality = 1.0f;
+        }
+        return quality < 0.5f ? 0.5f / quality : 2.0f - quality * 2.0f;
+    }
+
+    private static int[] quantTable(JPEGQTable base, float quality) {
+        if (quality >= 1.0f) {
+            int[] ones = new int[64];
+            Arrays.fill(ones, 1);
+            return ones;
+        }
+        return base.getScaledInstance(linearQuality(quality), true).getTable();
+    }
+
+    public static final class Prepared {
+        private final int width;
+        private final int height;
+        private final int mcuCount;
+        private final short[] coeffs;
+
+        private Prepared(int width, int height, int mcuCount, short[] coeffs) {
+            this.width = width;
+            this.height = height;
+            this.mcuCount = mcuCount;
+            this.coeffs = coeffs;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int encodedSize(float quality, int dpi) {
+            Tables tables = new Tables(quality);
+            BitSink sink = new BitSink(null);
+            entropyCode(tables, sink);
+            return header(tables, dpi).length + sink.size() + 2;
+        }
+
+        public byte[] encode(float quality, int dpi) {
+            Tables tables = new Tables(quality);
+            byte[] header = header(tables, dpi);
+            BitSink sink = new BitSink(new byte[Math.max(1024, coeffs.length / 8)]);
+            sink.append(header);
+            entropyCode(tables, sink);
+            sink.writeByte(0xFF);
+            sink.writeByte(0xD9);
+            return sink.toByteArray();
+        }
+
+        private void entropyCode(Tables tables, BitSink sink) {
+            int predY = 0;
+            int predCb = 0;
+            int predCr = 0;
+            int offset = 0;
+            for (int m = 0; m < mcuCount; m++) {
+                for (int b = 0; b < 4; b++) {
+                    predY = encodeBlock(offset, tables.lumaRecip, predY, DC_LUMA, AC_LUMA, sink);
+                    offset += 64;
+                }
+                predCb = encodeBlock(offset, tables.chromaRecip, predCb, DC_CHROMA, AC_CHROMA, sink);
+                offset += 64;
+                predCr = encodeBlock(offset, tables.chromaRecip, predCr, DC_CHROMA, AC_CHROMA, sink);
+                offset += 64;
+            }
+            sink.flushBits();
+        }
+
+        private int encodeBlock(int offset, float[] recip, int pred, HuffmanCodes dc, HuffmanCodes ac, BitSink sink) {
+            int dcValue = quantize(coeffs[offset], recip[0]);
+            int diff = dcValue - pred;
+            int dcBits = bitLength(diff);
+            sink.write(dc.codes[dcBits], dc.sizes[dcBits]);
+            if (dcBits > 0) {
+                sink.write(diff < 0 ? diff - 1 : diff, dcBits);
+            }
+
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int v = quantize(coeffs[offset + k], recip[k]);
+                if (v == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    sink.write(ac.codes[0xF0], ac.sizes[0xF0]);
+                    run -= 16;
+                }
+                int bits = bitLength(v);
+                int symbol = (run << 4) | bits;
+                sink.write(ac.codes[symbol], ac.sizes[symbol]);
+                sink.write(v < 0 ? v - 1 : v, bits);
+                run = 0;
+            }
+            if (run > 0) {
+                sink.write(ac.codes[0x00], ac.sizes[0x00]);
+            }
+            return dcValue;
+        }
+
+        private static int quantize(short coeff, float recip) {
+            float v = coeff * recip;
+            return (int) (v < 0 ? v - 0.5f : v + 0.5f);
+        }
+
+        private static int bitLength(int v) {
+            int abs = v < 0 ? -v : v;
+            return 32 - Integer.numberOfLeadingZeros(abs);
+        }
+
+        private byte[] header(Tables tables, int dpi) {
+            BitSink out = new BitSink(new byte[640]);
+            out.writeByte(0xFF);
+            out.writeByte(0xD8);
+
+            out.writeByte(0xFF);
+            out.writeByte(0xE0);
+            out.writeShort(16);
+            out.append(new byte[]{'J', 'F', 'I', 'F', 0, 1, 2, 1});
+            out.writeShort(dpi);
+            out.writeShort(dpi);
+            out.writeByte(0);
+            out.writeByte(0);
+
+            writeQuantTable(out, 0, tables.luma);
+            writeQuantTable(out, 1, tables.chroma);
+
+            out.writeByte(0xFF);
+            out.writeByte(0xC0);
+            out.writeShort(17);
+            out.writeByte(8);
+            out.writeShort(height);
+            out.writeShort(width);
+            out.writeByte(3);
+            out.append(new byte[]{1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+            writeHuffmanTable(out, 0x00, JPEGHuffmanTable.StdDCLuminance);
+            writeHuffmanTable(out, 0x10, JPEGHuffmanTable.StdACLuminance);
+            writeHuffmanTable(out, 0x01, JPEGHuffmanTable.StdDCChrominance);
+            writeHuffmanTable(out, 0x11, JPEGHuffmanTable.StdACChrominance);
+
+            out.writeByte(0xFF);
+            out.writeByte(0xDA);
+            out.writeShort(12);
+            out.append(new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+            return out.toByteArray();
+        }
+
+        private static void writeQuantTable(BitSink out, int id, int[] table) {
+            out.writeByte(0xFF);
+            out.writeByte(0xDB);
+            out.writeShort(67);
+            out.writeByte(id);
+            for (int k = 0; k < 64; k++) {
+                out.writeByte(table[ZIGZAG[k]]);
+            }
+        }
+
+        private static void writeHuffmanTable(BitSink out, int classAndId, JPEGHuffmanTable table) {
+            short[] lengths = table.getLengths();
+            short[] values = table.getValues();
+            out.writeByte(0xFF);
+            out.writeByte(0xC4);
+            out.writeShort(2 + 1 + 16 + values.length);
+            out.writeByte(classAndId);
+            for (short length : lengths) {
+                out.writeByte(length);
+            }
+            for (short value : values) {
+                out.writeByte(value);
+            }
+        }
+    }
+
+    private static final class Tables {
+        private final int[] luma;
+        private final int[] chroma;
+        private final float[] lumaRecip = new float[64];
+        private final float[] chromaRecip = new float[64];
+
+        private Tables(float quality) {
+            this.luma = quantTable(JPEGQTable.K1Luminance, quality);
+            this.chroma = quantTable(JPEGQTable.K2Chrominance, quality);
+            for (int k = 0; k < 64; k++) {
+                lumaRecip[k] = 1f / (COEFF_SCALE * luma[ZIGZAG[k]]);
+                chromaRecip[k] = 1f / (COEFF_SCALE * chroma[ZIGZAG[k]]);
+            }
+        }
+    }
+
+    private static final class HuffmanCodes {
+        private final int[] codes = new int[256];
+        private final int[] sizes = new int[256];
+
+        private HuffmanCodes(JPEGHuffmanTable table) {
+            short[] lengths = table.getLengths();
+            short[] values = table.getValues();
+            int code = 0;
+            int index = 0;
+            for (int len = 1; len <= 16; len++) {
+                for (int i = 0; i < lengths[len - 1]; i++) {
+                    int symbol = values[index++] & 0xff;
+                    codes[symbol] = code++;
+                    sizes[symbol] = len;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    private static final class BitSink {
+        private byte[] out;
+        private int size;
+        private int acc;
+        private int bits;
+
+        private BitSink(byte[] out) {
+            this.out = out;
+        }
+
+        private void write(int value, int length) {
+            acc = (acc << length) | (value & ((1 << length) - 1));
+            bits += length;
+            while (bits >= 8) {
+                int b = (acc >> (bits - 8)) & 0xff;
+                writeByte(b);
+                if (b == 0xFF) {
+                    writeByte(0);
+                }
+                bits -= 8;
+            }
+            acc &= (1 << bits) - 1;
+        }
+
+        private void flushBits() {
+            if (bits > 0) {
+                write((1 << (8 - bits)) - 1, 8 - bits);
+            }
+        }
+
+        private void writeByte(int b) {
+            if (out != null) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                out[size] = (byte) b;
+            }
+            size++;
+        }
+
+        private void writeShort(int v) {
+            writeByte((v >> 8) & 0xff);
+            writeByte(v & 0xff);
+        }
+
+        private void append(byte[] data) {
+            for (byte b : data) {
+                writeByte(b & 0xff);
+            }
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(out, size);
+        }
+    }
+}
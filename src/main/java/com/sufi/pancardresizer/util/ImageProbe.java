@@ -0,0 +1,123 @@
+package com.sufi.pancardresizer.util;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+public final class ImageProbe {
+    private static final int HEAD_BYTES = 1024;
+
+    private ImageProbe() {
+    }
+
+    public static Result probe(Path path) throws IOException {
+        String format = sniff(readHead(path));
+        if (format == null || format.equals("pdf")) {
+            return new Result(format, null, null);
+        }
+        try (ImageInputStream iis = ImageIO.createImageInputStream(path.toFile())) {
+            if (iis == null) {
+                return new Result(format, null, null);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+            if (!readers.hasNext()) {
+                readers = ImageIO.getImageReaders(iis);
+            }
+            if (!readers.hasNext()) {
+                return new Result(format, null, null);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new Result(format, reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public static String sniff(byte[] head) {
+        int n = head.length;
+        if (n >= 3 && (head[0] & 0xff) == 0xFF && (head[1] & 0xff) == 0xD8 && (head[2] & 0xff) == 0xFF) {
+            return "jpeg";
+        }
+        if (n >= 8 && (head[0] & 0xff) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G'
+            && head[4] == 0x0D && head[5] == 0x0A && head[6] == 0x1A && head[7] == 0x0A) {
+            return "png";
+        }
+        if (n >= 6 && startsWith(head, 0, "GIF8") && (head[4] == '7' || head[4] == '9') && head[5] == 'a') {
+            return "gif";
+        }
+        if (n >= 2 && head[0] == 'B' && head[1] == 'M') {
+            return "bmp";
+        }
+        if (n >= 12 && startsWith(head, 0, "RIFF") && startsWith(head, 8, "WEBP")) {
+            return "webp";
+        }
+        if (n >= 4 && ((head[0] == 'I' && head[1] == 'I' && head[2] == 42 && head[3] == 0)
+            || (head[0] == 'M' && head[1] == 'M' && head[2] == 0 && head[3] == 42))) {
+            return "tiff";
+        }
+        String text = new String(head, StandardCharsets.ISO_8859_1);
+        if (text.contains("%PDF-")) {
+            return "pdf";
+        }
+        return null;
+    }
+
+    private static byte[] readHead(Path path) throws IOException {
+        try (InputStream is = Files.newInputStream(path)) {
+            return is.readNBytes(HEAD_BYTES);
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int offset, String prefix) {
+        if (data.length < offset + prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static final class Result {
+        private final String format;
+        private final Integer width;
+        private final Integer height;
+
+        private Result(String format, Integer width, Integer height) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public Integer getWidth() {
+            return width;
+        }
+
+        public Integer getHeight() {
+            return height;
+        }
+
+        public boolean isPdf() {
+            return "pdf".equals(format);
+        }
+
+        public boolean hasDimensions() {
+            return width != null && height != null;
+        }
+    }
+}
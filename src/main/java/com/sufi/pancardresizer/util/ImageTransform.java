@@ -0,0 +1,315 @@
+package com.sufi.pancardresizer.util;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public final class ImageTransform {
+    private static final double MIN_SINGLE_PASS_SCALE = 0.5;
+
+    private final int srcW;
+    private final int srcH;
+    private final AffineTransform geometry;
+    private final int viewW;
+    private final int viewH;
+    private final int outW;
+    private final int outH;
+
+    private ImageTransform(int srcW, int srcH, AffineTransform geometry, int viewW, int viewH, int outW, int outH) {
+        this.srcW = srcW;
+        this.srcH = srcH;
+        this.geometry = geometry;
+        this.viewW = viewW;
+        this.viewH = viewH;
+        this.outW = outW;
+        this.outH = outH;
+    }
+
+    public static ImageTransform of(int width, int height) {
+        return new ImageTransform(width, height, new AffineTransform(), width, height, width, height);
+    }
+
+    public static ImageTransform of(BufferedImage src) {
+        return of(src.getWidth(), src.getHeight());
+    }
+
+    public ImageTransform rotate(int degrees) {
+        requireUnsized();
+        int normalized = ((degrees % 360) + 360) % 360;
+        if (normalized == 0) {
+            return this;
+        }
+        double rads = Math.toRadians(normalized);
+        double sin = Math.abs(Math.sin(rads));
+        double cos = Math.abs(Math.cos(rads));
+        int newW = (int) Math.floor(viewW * cos + viewH * sin);
+        int newH = (int) Math.floor(viewH * cos + viewW * sin);
+        AffineTransform next = new AffineTransform();
+        next.translate((newW - viewW) / 2.0, (newH - viewH) / 2.0);
+        next.rotate(rads, viewW / 2.0, viewH / 2.0);
+        next.concatenate(geometry);
+        return new ImageTransform(srcW, srcH, next, newW, newH, newW, newH);
+    }
+
+    public ImageTransform crop(Rectangle crop) {
+        requireUnsized();
+        if (crop == null) {
+            return this;
+        }
+        int safeX = Math.max(0, crop.x);
+        int safeY = Math.max(0, crop.y);
+        int safeW = Math.min(crop.width, viewW - safeX);
+        int safeH = Math.min(crop.height, viewH - safeY);
+        if (safeW <= 0 || safeH <= 0) {
+            return this;
+        }
+        AffineTransform next = AffineTransform.getTranslateInstance(-safeX, -safeY);
+        next.concatenate(geometry);
+        return new ImageTransform(srcW, srcH, next, safeW, safeH, safeW, safeH);
+    }
+
+    public ImageTransform zoom(double zoom) {
+        if (zoom <= 0.05 || zoom == 1.0) {
+            return this;
+        }
+        int w = (int) Math.max(1, Math.round(outW * zoom));
+        int h = (int) Math.max(1, Math.round(outH * zoom));
+        return resize(w, h);
+    }
+
+    public ImageTransform resize(int width, int height) {
+        return new ImageTransform(srcW, srcH, geometry, viewW, viewH, width, height);
+    }
+
+    public ImageTransform fit(int maxW, int maxH) {
+        double sourceRatio = (double) outW / outH;
+        double targetRatio = (double) maxW / maxH;
+        int w = maxW;
+        int h = maxH;
+        if (Double.compare(sourceRatio, targetRatio) != 0) {
+            if (sourceRatio > targetRatio) {
+                h = (int) Math.round(maxW / sourceRatio);
+            } else {
+                w = (int) Math.round(maxH * sourceRatio);
+            }
+        }
+        return resize(Math.max(1, w), Math.max(1, h));
+    }
+
+    public int getWidth() {
+        return outW;
+    }
+
+    public int getHeight() {
+        return outH;
+    }
+
+    public int getViewWidth() {
+        return viewW;
+    }
+
+    public int getViewHeight() {
+        return viewH;
+    }
+
+    int getSourceWidth() {
+        return srcW;
+    }
+
+    int getSourceHeight() {
+        return srcH;
+    }
+
+    AffineTransform getGeometry() {
+        return new AffineTransform(geometry);
+    }
+
+    double getOutputScale() {
+        return Math.min((double) outW / viewW, (double) outH / viewH);
+    }
+
+    boolean isTranslationOnly() {
+        return geometry.getType() == AffineTransform.TYPE_IDENTITY || geometry.getType() == AffineTransform.TYPE_TRANSLATION;
+    }
+
+    Rectangle sourceBounds() {
+        if (isTranslationOnly()) {
+            return new Rectangle((int) -geometry.getTranslateX(), (int) -geometry.getTranslateY(), viewW, viewH);
+        }
+        AffineTransform inverse;
+        try {
+            inverse = geometry.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            return new Rectangle(0, 0, srcW, srcH);
+        }
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        double[][] corners = {{0, 0}, {viewW, 0}, {0, viewH}, {viewW, viewH}};
+        for (double[] corner : corners) {
+            Point2D p = inverse.transform(new Point2D.Double(corner[0], corner[1]), null);
+            minX = Math.min(minX, p.getX());
+            minY = Math.min(minY, p.getY());
+            maxX = Math.max(maxX, p.getX());
+            maxY = Math.max(maxY, p.getY());
+        }
+        int x0 = Math.max(0, (int) Math.floor(minX) - 1);
+        int y0 = Math.max(0, (int) Math.floor(minY) - 1);
+        int x1 = Math.min(srcW, (int) Math.ceil(maxX) + 1);
+        int y1 = Math.min(srcH, (int) Math.ceil(maxY) + 1);
+        if (x1 <= x0 || y1 <= y0) {
+            return new Rectangle(0, 0, srcW, srcH);
+        }
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    public BufferedImage render(BufferedImage src) {
+        return render(src, null);
+    }
+
+    public BufferedImage render(BufferedImage src, ForkJoinPool pool) {
+        return render(src, new Rectangle(0, 0, srcW, srcH), 1, pool);
+    }
+
+    BufferedImage render(BufferedImage decoded, Rectangle region, int step, ForkJoinPool pool) {
+        AffineTransform toView = new AffineTransform(geometry);
+        toView.translate(region.x, region.y);
+        toView.scale(step, step);
+
+        AffineTransform toOut = AffineTransform.getScaleInstance((double) outW / viewW, (double) outH / viewH);
+        toOut.concatenate(toView);
+        if (isPixelExact(toOut)) {
+            return copy(decoded, toOut, outW, outH, pool);
+        }
+
+        int midW = Math.max(1, (int) Math.ceil(viewW / (double) step));
+        int midH = Math.max(1, (int) Math.ceil(viewH / (double) step));
+        AffineTransform toMid = AffineTransform.getScaleInstance(1.0 / step, 1.0 / step);
+        toMid.concatenate(toView);
+        Resampler.Filter filter = Resampler.Filter.forScale((double) outW / midW, (double) outH / midH);
+        if (isPixelExact(toMid)) {
+            // right-angle rotations and crops resolve exactly, so the resize is one separable pass
+            Rectangle inside = translatedRegion(decoded, toMid, midW, midH);
+            if (inside != null) {
+                return Resampler.resample(decoded, inside, outW, outH, filter, pool);
+            }
+            return Resampler.resample(copy(decoded, toMid, midW, midH, pool), outW, outH, filter, pool);
+        }
+        // arbitrary angles need a 2D kernel: Java2D's bilinear is enough unless the reduction is large
+        if (axisScale(toOut.getScaleX(), toOut.getShearY()) >= MIN_SINGLE_PASS_SCALE
+            && axisScale(toOut.getShearX(), toOut.getScaleY()) >= MIN_SINGLE_PASS_SCALE) {
+            return draw(decoded, toOut, outW, outH, pool);
+        }
+        return Resampler.resample(draw(decoded, toMid, midW, midH, pool), outW, outH, filter, pool);
+    }
+
+    // the decoded pixels the view covers, when the view is a plain crop of an opaque image
+    private static Rectangle translatedRegion(BufferedImage decoded, AffineTransform toMid, int midW, int midH) {
+        if (decoded.getColorModel().hasAlpha()
+            || (toMid.getType() != AffineTransform.TYPE_IDENTITY && toMid.getType() != AffineTransform.TYPE_TRANSLATION)) {
+            return null;
+        }
+        Rectangle region = new Rectangle((int) -toMid.getTranslateX(), (int) -toMid.getTranslateY(), midW, midH);
+        return new Rectangle(0, 0, decoded.getWidth(), decoded.getHeight()).contains(region) ? region : null;
+    }
+
+    private static boolean isPixelExact(AffineTransform at) {
+        double[] m = new double[6];
+        at.getMatrix(m);
+        for (int i = 0; i < 4; i++) {
+            if (m[i] != 0 && Math.abs(m[i]) != 1) {
+                return false;
+            }
+        }
+        if (Math.abs(m[0] * m[3] - m[1] * m[2]) != 1) {
+            return false;
+        }
+        Point2D center = at.transform(new Point2D.Double(0.5, 0.5), null);
+        return center.getX() - 0.5 == Math.rint(center.getX() - 0.5) && center.getY() - 0.5 == Math.rint(center.getY() - 0.5);
+    }
+
+    private static double axisScale(double dx, double dy) {
+        return Math.hypot(dx, dy);
+    }
+
+    private static BufferedImage copy(BufferedImage src, AffineTransform toOut, int outW, int outH, ForkJoinPool pool) {
+        if (src.getColorModel().hasAlpha()) {
+            return draw(src, toOut, outW, outH, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, pool);
+        }
+        AffineTransform inverse;
+        try {
+            inverse = toOut.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalStateException(e);
+        }
+        BufferedImage out = new BufferedImage(outW, outH, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, 0xFFFFFF);
+
+        Point2D first = inverse.transform(new Point2D.Double(0.5, 0.5), null);
+        Point2D last = inverse.transform(new Point2D.Double(outW - 0.5, outH - 0.5), null);
+        int x0 = Math.max(0, (int) Math.floor(Math.min(first.getX(), last.getX())));
+        int x1 = Math.min(src.getWidth() - 1, (int) Math.floor(Math.max(first.getX(), last.getX())));
+        int y0 = Math.max(0, (int) Math.floor(Math.min(first.getY(), last.getY())));
+        int y1 = Math.min(src.getHeight() - 1, (int) Math.floor(Math.max(first.getY(), last.getY())));
+        if (x1 < x0 || y1 < y0) {
+            return out;
+        }
+
+        Point2D origin = toOut.transform(new Point2D.Double(0.5, 0.5), null);
+        int ox0 = (int) Math.floor(origin.getX());
+        int oy0 = (int) Math.floor(origin.getY());
+        int a = (int) toOut.getScaleX();
+        int b = (int) toOut.getShearX();
+        int c = (int) toOut.getShearY();
+        int d = (int) toOut.getScaleY();
+        int n = x1 - x0 + 1;
+        RowBands.map(pool, n, y0, y1 + 1, (fromRow, toRow) -> {
+            int[] row = new int[n];
+            for (int y = fromRow; y < toRow; y++) {
+                PixelKernels.readRow(src, x0, y, n, row);
+                for (int k = 0; k < n; k++) {
+                    int x = x0 + k;
+                    int ox = ox0 + a * x + b * y;
+                    int oy = oy0 + c * x + d * y;
+                    if (ox >= 0 && ox < outW && oy >= 0 && oy < outH) {
+                        pixels[oy * outW + ox] = row[k] & 0xFFFFFF;
+                    }
+                }
+            }
+            return null;
+        });
+        return out;
+    }
+
+    private static BufferedImage draw(BufferedImage src, AffineTransform toOut, int outW, int outH, ForkJoinPool pool) {
+        return draw(src, toOut, outW, outH, RenderingHints.VALUE_INTERPOLATION_BILINEAR, pool);
+    }
+
+    private static BufferedImage draw(BufferedImage src, AffineTransform toOut, int outW, int outH, Object interpolation, ForkJoinPool pool) {
+        BufferedImage out = new BufferedImage(outW, outH, BufferedImage.TYPE_INT_RGB);
+        RowBands.map(pool, outW, 0, outH, (fromRow, toRow) -> {
+            Graphics2D g = out.createGraphics();
+            g.setClip(0, fromRow, outW, toRow - fromRow);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, fromRow, outW, toRow - fromRow);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            g.drawRenderedImage(src, toOut);
+            g.dispose();
+            return null;
+        });
+        return out;
+    }
+
+    private void requireUnsized() {
+        if (outW != viewW || outH != viewH) {
+            throw new IllegalStateException("Rotate and crop must precede resizing");
+        }
+    }
+}
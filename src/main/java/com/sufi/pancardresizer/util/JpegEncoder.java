@@ -0,0 +1,104 @@
+package com.sufi.pancardresizer.util;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public final class JpegEncoder {
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_RETAINED_BUFFER_BYTES = 256 * 1024;
+    // a few idle encoders are kept for reuse; request threads beyond that create and drop their own
+    private static final BlockingQueue<JpegEncoder> IDLE =
+        new ArrayBlockingQueue<>(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private final ImageWriter writer;
+    private final ImageWriteParam param;
+    private final Map<Integer, IIOMetadata> metadataByDpi = new HashMap<>();
+    private OutputBuffer buffer = new OutputBuffer(INITIAL_BUFFER_BYTES);
+
+    private JpegEncoder() throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG writer available");
+        }
+        this.writer = writers.next();
+        this.param = writer.getDefaultWriteParam();
+        this.param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    }
+
+    public static byte[] encode(BufferedImage rgb, float quality, int dpi) throws IOException {
+        JpegEncoder encoder = IDLE.poll();
+        if (encoder == null) {
+            encoder = new JpegEncoder();
+        }
+        byte[] data;
+        try {
+            data = encoder.write(rgb, quality, dpi);
+        } catch (IOException | RuntimeException e) {
+            encoder.writer.dispose();
+            throw e;
+        }
+        if (!IDLE.offer(encoder)) {
+            encoder.writer.dispose();
+        }
+        return data;
+    }
+
+    private byte[] write(BufferedImage rgb, float quality, int dpi) throws IOException {
+        param.setCompressionQuality(quality);
+        IIOMetadata metadata = metadataByDpi.get(dpi);
+        if (metadata == null) {
+            metadata = createMetadata(dpi);
+            metadataByDpi.put(dpi, metadata);
+        }
+
+        buffer.reset();
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(buffer)) {
+            writer.setOutput(ios);
+            writer.write(metadata, new IIOImage(rgb, null, metadata), param);
+        } finally {
+            writer.setOutput(null);
+        }
+        byte[] data = buffer.toByteArray();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_BYTES) {
+            buffer = new OutputBuffer(INITIAL_BUFFER_BYTES);
+        }
+        return data;
+    }
+
+    private IIOMetadata createMetadata(int dpi) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB), param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        IIOMetadataNode jfif = (IIOMetadataNode) root.getElementsByTagName("app0JFIF").item(0);
+        jfif.setAttribute("resUnits", "1");
+        jfif.setAttribute("Xdensity", Integer.toString(dpi));
+        jfif.setAttribute("Ydensity", Integer.toString(dpi));
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+        return metadata;
+    }
+
+    private static final class OutputBuffer extends ByteArrayOutputStream {
+        private OutputBuffer(int size) {
+            super(size);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.sufi.pancardresizer.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+public interface JpegProbe {
+    int size(float quality) throws IOException;
+
+    byte[] encode(float quality) throws IOException;
+
+    static JpegProbe imageIo(BufferedImage image, int dpi, int maxBytes) {
+        return new ImageIoProbe(image, dpi, maxBytes);
+    }
+
+    static JpegProbe dct(BufferedImage image, int dpi) {
+        return new DctProbe(image, dpi);
+    }
+
+    // keeps only the last encode and the best one under maxBytes; any other quality is encoded again if asked for
+    class ImageIoProbe implements JpegProbe {
+        private final BufferedImage image;
+        private final int dpi;
+        private final int maxBytes;
+        private Encoded last;
+        private Encoded best;
+
+        private ImageIoProbe(BufferedImage image, int dpi, int maxBytes) {
+            this.image = image;
+            this.dpi = dpi;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int size(float quality) throws IOException {
+            return encode(quality).length;
+        }
+
+        @Override
+        public byte[] encode(float quality) throws IOException {
+            byte[] data = remembered(quality);
+            if (data == null) {
+                data = ImageUtils.writeJpegWithQualityAndDpi(image, quality, dpi);
+                remember(quality, data);
+            }
+            return data;
+        }
+
+        private synchronized byte[] remembered(float quality) {
+            if (last != null && last.quality == quality) {
+                return last.data;
+            }
+            if (best != null && best.quality == quality) {
+                return best.data;
+            }
+            return null;
+        }
+
+        private synchronized void remember(float quality, byte[] data) {
+            Encoded encoded = new Encoded(quality, data);
+            last = encoded;
+            if (data.length <= maxBytes && (best == null || quality > best.quality)) {
+                best = encoded;
+            }
+        }
+
+        private static final class Encoded {
+            private final float quality;
+            private final byte[] data;
+
+            private Encoded(float quality, byte[] data) {
+                this.quality = quality;
+                this.data = data;
+            }
+        }
+    }
+
+    // sizes and the final bytes both come from the DCT encoder, so the search fits one encoder's curve
+    class DctProbe implements JpegProbe {
+        private final BufferedImage image;
+        private final int dpi;
+        private volatile DctJpegEncoder.Prepared prepared;
+
+        private DctProbe(BufferedImage image, int dpi) {
+            this.image = image;
+            this.dpi = dpi;
+        }
+
+        @Override
+        public int size(float quality) {
+            return prepared().encodedSize(quality, dpi);
+        }
+
+        @Override
+        public byte[] encode(float quality) {
+            return prepared().encode(quality, dpi);
+        }
+
+        private DctJpegEncoder.Prepared prepared() {
+            DctJpegEncoder.Prepared current = prepared;
+            if (current == null) {
+                synchronized (this) {
+                    current = prepared;
+                    if (current == null) {
+                        current = DctJpegEncoder.prepare(ImageUtils.toRgb(image));
+                        prepared = current;
+                    }
+                }
+            }
+            return current;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.sufi.pancardresizer.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+public final class JpegSizeEstimator {
+    private static final int HEADER_BYTES = 620;
+    private static final double DEFAULT_EXPONENT = 1.8;
+    private static final double MIN_EXPONENT = 1.0;
+    private static final double MAX_EXPONENT = 2.2;
+    private static final double BASE_ERROR = 0.06;
+    private static final double EXPONENT_ERROR = 0.12;
+
+    private JpegSizeEstimator() {
+    }
+
+    public static Estimate estimate(BufferedImage proxy, double proxyScale, double targetScale, float quality, int dpi) throws IOException {
+        BufferedImage half = ImageUtils.zoom(proxy, 0.5);
+        int proxyBytes = ImageUtils.writeJpegWithQualityAndDpi(proxy, quality, dpi).length;
+        int halfBytes = ImageUtils.writeJpegWithQualityAndDpi(half, quality, dpi).length;
+
+        double body = Math.max(1, proxyBytes - HEADER_BYTES);
+        double halfBody = Math.max(1, halfBytes - HEADER_BYTES);
+        double halfScale = (double) half.getWidth() / proxy.getWidth();
+        double exponent = halfScale < 1.0 ? Math.log(body / halfBody) / -Math.log(halfScale) : DEFAULT_EXPONENT;
+        if (!(exponent >= MIN_EXPONENT)) {
+            exponent = MIN_EXPONENT;
+        }
+        exponent = Math.min(MAX_EXPONENT, exponent);
+
+        double ratio = targetScale / proxyScale;
+        double predicted = body * Math.pow(ratio, exponent);
+        double error = predicted * (BASE_ERROR + EXPONENT_ERROR * Math.abs(Math.log(ratio)));
+        return new Estimate(Math.round(HEADER_BYTES + predicted), Math.round(error));
+    }
+
+    public static final class Estimate {
+        private final long sizeBytes;
+        private final long errorBytes;
+
+        private Estimate(long sizeBytes, long errorBytes) {
+            this.sizeBytes = sizeBytes;
+            this.errorBytes = errorBytes;
+        }
+
+        public long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        public long getErrorBytes() {
+            return errorBytes;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.sufi.pancardresizer.util;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.lang.reflect.Method;
+import java.util.concurrent.ForkJoinPool;
+
+public final class PixelKernels {
+    static final int BW_THRESHOLD_MILLI = 160_000;
+    private static final RowKernels VECTOR = loadVectorKernels();
+
+    private PixelKernels() {
+    }
+
+    public static BufferedImage toBlackAndWhite(BufferedImage src) {
+        return toBlackAndWhite(src, null);
+    }
+
+    public static BufferedImage toBlackAndWhite(BufferedImage src, ForkJoinPool pool) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        BufferedImage bw = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] out = intPixels(bw);
+        RowBands.map(pool, w, 0, h, (fromRow, toRow) -> {
+            int[] row = new int[w];
+            for (int y = fromRow; y < toRow; y++) {
+                readRow(src, 0, y, w, row);
+                if (VECTOR != null) {
+                    VECTOR.blackAndWhite(row, out, y * w, w);
+                } else {
+                    blackAndWhiteRow(row, out, y * w, 0, w);
+                }
+            }
+            return null;
+        });
+        return bw;
+    }
+
+    public static Rectangle contentBounds(BufferedImage src, int whiteThreshold) {
+        return contentBounds(src, whiteThreshold, null);
+    }
+
+    public static Rectangle contentBounds(BufferedImage src, int whiteThreshold, ForkJoinPool pool) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int[] row = new int[w];
+
+        int minY = 0;
+        int firstX = -1;
+        while (minY < h) {
+            readRow(src, 0, minY, w, row);
+            firstX = firstContent(row, 0, w, whiteThreshold);
+            if (firstX >= 0) {
+                break;
+            }
+            minY++;
+        }
+        if (minY == h) {
+            return null;
+        }
+        int minX = firstX;
+        int maxX = lastContent(row, minX, w, whiteThreshold);
+
+        int maxY = h - 1;
+        while (maxY > minY) {
+            readRow(src, 0, maxY, w, row);
+            int first = firstContent(row, 0, w, whiteThreshold);
+            if (first >= 0) {
+                minX = Math.min(minX, first);
+                maxX = Math.max(maxX, lastContent(row, first, w, whiteThreshold));
+                break;
+            }
+            maxY--;
+        }
+
+        int edgeMinX = minX;
+        int edgeMaxX = maxX;
+        for (int[] band : RowBands.map(pool, w, minY + 1, maxY,
+            (fromRow, toRow) -> horizontalBounds(src, fromRow, toRow, edgeMinX, edgeMaxX, whiteThreshold))) {
+            minX = Math.min(minX, band[0]);
+            maxX = Math.max(maxX, band[1]);
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    public static BlackSplit splitBlack(BufferedImage src, Rectangle region, int blackThreshold) {
+        return splitBlack(src, region, blackThreshold, null);
+    }
+
+    public static BlackSplit splitBlack(BufferedImage src, Rectangle region, int blackThreshold, ForkJoinPool pool) {
+        int w = region.width;
+        int h = region.height;
+        BufferedImage base = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        BufferedImage mask = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] baseOut = intPixels(base);
+        int[] maskOut = intPixels(mask);
+
+        boolean hasMask = false;
+        for (boolean bandHasMask : RowBands.map(pool, w, 0, h, (fromRow, toRow) -> {
+            int[] row = new int[w];
+            boolean found = false;
+            for (int y = fromRow; y < toRow; y++) {
+                readRow(src, region.x, region.y + y, w, row);
+                found |= VECTOR != null
+                    ? VECTOR.splitBlack(row, baseOut, maskOut, y * w, w, blackThreshold)
+                    : splitBlackRow(row, baseOut, maskOut, y * w, 0, w, blackThreshold);
+            }
+            return found;
+        })) {
+            hasMask |= bandHasMask;
+        }
+        return new BlackSplit(base, mask, hasMask);
+    }
+
+    private static int[] horizontalBounds(BufferedImage src, int fromRow, int toRow, int minX, int maxX, int whiteThreshold) {
+        int w = src.getWidth();
+        int[] row = new int[w];
+        for (int y = fromRow; y < toRow && (minX > 0 || maxX < w - 1); y++) {
+            readRow(src, 0, y, w, row);
+            int first = firstContent(row, 0, minX, whiteThreshold);
+            if (first >= 0) {
+                minX = first;
+            }
+            int last = lastContent(row, maxX + 1, w, whiteThreshold);
+            if (last >= 0) {
+                maxX = last;
+            }
+        }
+        return new int[] {minX, maxX};
+    }
+
+    static void blackAndWhiteRow(int[] row, int[] out, int offset, int from, int to) {
+        for (int x = from; x < to; x++) {
+            out[offset + x] = isDark(row[x]) ? 0x000000 : 0xFFFFFF;
+        }
+    }
+
+    static boolean splitBlackRow(int[] row, int[] baseOut, int[] maskOut, int offset, int from, int to, int blackThreshold) {
+        boolean hasMask = false;
+        for (int x = from; x < to; x++) {
+            int rgb = row[x];
+            if (((rgb >> 16) & 0xff) <= blackThreshold && ((rgb >> 8) & 0xff) <= blackThreshold && (rgb & 0xff) <= blackThreshold) {
+                baseOut[offset + x] = 0xFFFFFF;
+                maskOut[offset + x] = 0xFF000000;
+                hasMask = true;
+            } else {
+                baseOut[offset + x] = rgb & 0xFFFFFF;
+            }
+        }
+        return hasMask;
+    }
+
+    static boolean isDark(int rgb) {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+        int lum = 299 * r + 587 * g + 114 * b;
+        if (lum != BW_THRESHOLD_MILLI) {
+            return lum < BW_THRESHOLD_MILLI;
+        }
+        // exact boundary: match the rounding of the original floating-point formula
+        return (int) (0.299 * r + 0.587 * g + 0.114 * b) < 160;
+    }
+
+    private static int firstContent(int[] row, int from, int to, int threshold) {
+        return VECTOR != null ? VECTOR.firstContent(row, from, to, threshold) : firstContentScalar(row, from, to, threshold);
+    }
+
+    private static int lastContent(int[] row, int from, int to, int threshold) {
+        return VECTOR != null ? VECTOR.lastContent(row, from, to, threshold) : lastContentScalar(row, from, to, threshold);
+    }
+
+    static int firstContentScalar(int[] row, int from, int to, int threshold) {
+        for (int x = from; x < to; x++) {
+            if (isContent(row[x], threshold)) {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    static int lastContentScalar(int[] row, int from, int to, int threshold) {
+        for (int x = to - 1; x >= from; x--) {
+            if (isContent(row[x], threshold)) {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isContent(int rgb, int threshold) {
+        return ((rgb >> 16) & 0xff) < threshold || ((rgb >> 8) & 0xff) < threshold || (rgb & 0xff) < threshold;
+    }
+
+    static void readRow(BufferedImage src, int x0, int y, int w, int[] out) {
+        WritableRaster raster = src.getRaster();
+        SampleModel model = raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        int px = x0 - raster.getSampleModelTranslateX();
+        int py = y - raster.getSampleModelTranslateY();
+        int type = src.getType();
+
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+            && buffer instanceof DataBufferInt ints && model instanceof SinglePixelPackedSampleModel packed) {
+            int start = ints.getOffset() + py * packed.getScanlineStride() + px;
+            System.arraycopy(ints.getData(), start, out, 0, w);
+            return;
+        }
+        if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+            && buffer instanceof DataBufferByte bytes && model instanceof ComponentSampleModel component) {
+            byte[] data = bytes.getData();
+            int stride = component.getPixelStride();
+            int[] bands = component.getBandOffsets();
+            int start = bytes.getOffset() + py * component.getScanlineStride() + px * stride;
+            int rOff = start + bands[0];
+            int gOff = start + bands[1];
+            int bOff = start + bands[2];
+            for (int x = 0, i = 0; x < w; x++, i += stride) {
+                out[x] = ((data[rOff + i] & 0xff) << 16) | ((data[gOff + i] & 0xff) << 8) | (data[bOff + i] & 0xff);
+            }
+            return;
+        }
+        src.getRGB(x0, y, w, 1, out, 0, w);
+    }
+
+    // the Vector API kernels are opt-in: they load only when the JVM runs with --add-modules jdk.incubator.vector
+    private static RowKernels loadVectorKernels() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            Class<?> type = Class.forName(PixelKernels.class.getPackageName() + ".VectorRowKernels");
+            Method create = type.getDeclaredMethod("create");
+            return (RowKernels) create.invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    static RowKernels vectorKernels() {
+        return VECTOR;
+    }
+
+    private static int[] intPixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    public static final class BlackSplit {
+        private final BufferedImage base;
+        private final BufferedImage mask;
+        private final boolean hasMask;
+
+        private BlackSplit(BufferedImage base, BufferedImage mask, boolean hasMask) {
+            this.base = base;
+            this.mask = mask;
+            this.hasMask = hasMask;
+        }
+
+        public BufferedImage getBase() {
+            return base;
+        }
+
+        public BufferedImage getMask() {
+            return mask;
+        }
+
+        public boolean hasMask() {
+            return hasMask;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.sufi.pancardresizer.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public final class QualitySearch {
+    public static final float MIN_QUALITY = 0.2f;
+    public static final float MAX_QUALITY = 0.95f;
+    private static final double TOLERANCE = 0.04;
+    private static final float RESOLUTION = 0.01f;
+    private static final double PRIOR_LOG_SLOPE = 2.4;
+    private static final double GRID = 0.005;
+
+    private QualitySearch() {
+    }
+
+    public static Result search(JpegProbe probe, int maxBytes, int maxEncodes) throws IOException {
+        return run(probe, maxBytes, maxEncodes, null);
+    }
+
+    // same decisions as search(); the pool only prefetches the qualities the next steps are predicted to ask for
+    public static Result searchParallel(JpegProbe probe, int maxBytes, int maxEncodes, ForkJoinPool pool) throws IOException {
+        if (pool.getParallelism() <= 1 || isSaturated(pool)) {
+            return search(probe, maxBytes, maxEncodes);
+        }
+        return run(probe, maxBytes, maxEncodes, pool);
+    }
+
+    private static Result run(JpegProbe probe, int maxBytes, int maxEncodes, ForkJoinPool pool) throws IOException {
+        int budget = Math.max(1, maxEncodes);
+        Sizes sizes = new Sizes(probe, pool);
+        State state = new State(maxBytes);
+
+        float q = MAX_QUALITY;
+        for (int steps = 0; steps < budget; steps++) {
+            state.accept(new Sample(q, sizes.size(q, state)));
+            if (state.done) {
+                break;
+            }
+            q = state.next();
+        }
+
+        if (state.best != null) {
+            return new Result(probe.encode(state.best.quality), state.best.quality, sizes.encodes, true);
+        }
+        Sample floor = state.floor;
+        if (floor == null) {
+            floor = new Sample(MIN_QUALITY, sizes.size(MIN_QUALITY, null));
+        }
+        return new Result(probe.encode(MIN_QUALITY), MIN_QUALITY, sizes.encodes, floor.size() <= maxBytes);
+    }
+
+    private static boolean isSaturated(ForkJoinPool pool) {
+        return pool.getQueuedSubmissionCount() > 0 || pool.getActiveThreadCount() >= pool.getParallelism();
+    }
+
+    private static float nextQuality(Sample low, Sample high, double target) {
+        float lowQ = low == null ? MIN_QUALITY : low.quality;
+        float highQ = high.quality;
+        double guess;
+        if (low != null) {
+            double slope = (Math.log(high.size()) - Math.log(low.size())) / (highQ - lowQ);
+            guess = slope > 0 ? lowQ + (Math.log(target) - Math.log(low.size())) / slope : (lowQ + highQ) / 2.0;
+        } else {
+            guess = highQ - (Math.log(high.size()) - Math.log(target)) / overSlope(high);
+            if (guess <= MIN_QUALITY) {
+                return MIN_QUALITY;
+            }
+        }
+        double margin = (highQ - lowQ) * 0.1;
+        guess = Math.max(lowQ + margin, Math.min(highQ - margin, guess));
+        // on a coarse grid a speculative probe can match the quality the next step really asks for
+        float snapped = (float) (Math.round(guess / GRID) * GRID);
+        return snapped > lowQ && snapped < highQ ? snapped : (float) guess;
+    }
+
+    private static double overSlope(Sample high) {
+        double slope = high.previous != null
+            ? (Math.log(high.previous.size()) - Math.log(high.size())) / (high.previous.quality - high.quality)
+            : PRIOR_LOG_SLOPE;
+        return slope > 0 ? slope : PRIOR_LOG_SLOPE;
+    }
+
+    private static final class State {
+        private final int maxBytes;
+        private final double target;
+        private Sample low;
+        private Sample high;
+        private Sample best;
+        private Sample floor;
+        private boolean done;
+
+        private State(int maxBytes) {
+            this.maxBytes = maxBytes;
+            this.target = maxBytes * (1.0 - TOLERANCE / 2);
+        }
+
+        private State copy() {
+            State copy = new State(maxBytes);
+            copy.low = low;
+            copy.high = high;
+            copy.best = best;
+            copy.floor = floor;
+            copy.done = done;
+            return copy;
+        }
+
+        private void accept(Sample sample) {
+            if (sample.quality <= MIN_QUALITY) {
+                floor = sample;
+            }
+            if (sample.size() <= maxBytes) {
+                best = sample;
+                low = sample;
+                if (sample.quality >= MAX_QUALITY || sample.size() >= maxBytes * (1.0 - TOLERANCE)) {
+                    done = true;
+                    return;
+                }
+            } else {
+                if (sample.quality <= MIN_QUALITY) {
+                    done = true;
+                    return;
+                }
+                sample.previous = high;
+                high = sample;
+            }
+            if (low != null && high != null && high.quality - low.quality < RESOLUTION) {
+                done = true;
+            }
+        }
+
+        private float next() {
+            return nextQuality(low, high, target);
+        }
+
+        // the size the current secant model expects at quality q, or -1 before there is a model
+        private double predict(float q) {
+            if (high == null) {
+                return -1;
+            }
+            double slope = low != null && high.quality > low.quality
+                ? (Math.log(high.size()) - Math.log(low.size())) / (high.quality - low.quality)
+                : overSlope(high);
+            return Math.exp(Math.log(high.size()) + slope * (q - high.quality));
+        }
+    }
+
+    private static final class Sizes {
+        private static final double[] HYPOTHESES = {1.0, 0.98, 1.02, 0.95, 1.05};
+
+        private final JpegProbe probe;
+        private final ForkJoinPool pool;
+        private final Map<Float, Integer> known = new HashMap<>();
+        private int encodes;
+
+        private Sizes(JpegProbe probe, ForkJoinPool pool) {
+            this.probe = probe;
+            this.pool = pool;
+        }
+
+        private int size(float q, State state) throws IOException {
+            Integer size = known.get(q);
+            if (size != null) {
+                return size;
+            }
+            if (pool == null || state == null || isSaturated(pool)) {
+                size = probe.size(q);
+                known.put(q, size);
+                encodes++;
+                return size;
+            }
+            LinkedHashSet<Float> qualities = new LinkedHashSet<>();
+            qualities.add(q);
+            speculate(state, q, pool.getParallelism(), qualities);
+            probeAll(new ArrayList<>(qualities));
+            return known.get(q);
+        }
+
+        // the qualities the next step would ask for if q came back near the model's prediction
+        private void speculate(State state, float q, int width, Set<Float> qualities) {
+            double predicted = state.predict(q);
+            if (predicted <= 0) {
+                return;
+            }
+            for (double hypothesis : HYPOTHESES) {
+                if (qualities.size() >= width) {
+                    return;
+                }
+                State branch = state.copy();
+                branch.accept(new Sample(q, (int) Math.max(1, Math.round(predicted * hypothesis))));
+                if (!branch.done) {
+                    float next = branch.next();
+                    if (!known.containsKey(next)) {
+                        qualities.add(next);
+                    }
+                }
+            }
+        }
+
+        private void probeAll(List<Float> qualities) throws IOException {
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for (Float q : qualities) {
+                tasks.add(() -> probe.size(q));
+            }
+            List<Future<Integer>> futures = pool.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    known.put(qualities.get(i), futures.get(i).get());
+                    encodes++;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) {
+                        throw io;
+                    }
+                    throw new IOException("JPEG probe failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("JPEG probe interrupted", e);
+                }
+            }
+        }
+    }
+
+    private static final class Sample {
+        private final float quality;
+        private final int size;
+        private Sample previous;
+
+        private Sample(float quality, int size) {
+            this.quality = quality;
+            this.size = size;
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+
+    public static final class Result {
+        private final byte[] data;
+        private final float quality;
+        private final int encodes;
+        private final boolean fits;
+
+        private Result(byte[] data, float quality, int encodes, boolean fits) {
+            this.data = data;
+            this.quality = quality;
+            this.encodes = encodes;
+            this.fits = fits;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public float getQuality() {
+            return quality;
+        }
+
+        public int getEncodes() {
+            return encodes;
+        }
+
+        public boolean fits() {
+            return fits;
+        }
+    }
+}
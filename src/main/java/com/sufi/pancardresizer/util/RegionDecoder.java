@@ -0,0 +1,115 @@
+package com.sufi.pancardresizer.util;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+public final class RegionDecoder {
+    private RegionDecoder() {
+    }
+
+    public static Plan plan(int srcW, int srcH, int degrees, Rectangle crop, int maxW, int maxH) {
+        ImageTransform transform = ImageTransform.of(srcW, srcH).rotate(degrees).crop(crop);
+        double fit = Math.min((double) maxW / transform.getViewWidth(), (double) maxH / transform.getViewHeight());
+        return plan(transform, fit);
+    }
+
+    public static Plan plan(ImageTransform transform) {
+        return plan(transform, transform.getOutputScale());
+    }
+
+    private static Plan plan(ImageTransform transform, double scale) {
+        int subsample = scale >= 1.0 ? 1 : Math.max(1, (int) Math.floor(1.0 / scale));
+        return new Plan(transform, transform.sourceBounds(), subsample, subsample);
+    }
+
+    public static BufferedImage read(Path path, Plan plan) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(path.toFile())) {
+            if (iis == null) {
+                throw new IOException("Unable to open image");
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(plan.sourceRegion);
+                param.setSourceSubsampling(plan.subsample, plan.subsample, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public static BufferedImage render(BufferedImage decoded, Plan plan) {
+        int s = plan.subsample;
+        ImageTransform transform = plan.transform;
+        int outW = Math.max(1, (int) Math.ceil(transform.getViewWidth() / (double) s));
+        int outH = Math.max(1, (int) Math.ceil(transform.getViewHeight() / (double) s));
+        AffineTransform geometry = transform.getGeometry();
+        if (transform.isTranslationOnly() && plan.decodedStep == s) {
+            int x = ((int) -geometry.getTranslateX() - plan.sourceRegion.x) / s;
+            int y = ((int) -geometry.getTranslateY() - plan.sourceRegion.y) / s;
+            if (x == 0 && y == 0 && decoded.getWidth() == outW && decoded.getHeight() == outH) {
+                return decoded;
+            }
+            return ImageUtils.crop(decoded, x, y, outW, outH);
+        }
+
+        AffineTransform at = new AffineTransform();
+        at.scale(1.0 / s, 1.0 / s);
+        at.concatenate(geometry);
+        at.translate(plan.sourceRegion.x, plan.sourceRegion.y);
+        at.scale(plan.decodedStep, plan.decodedStep);
+
+        BufferedImage out = new BufferedImage(outW, outH, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, outW, outH);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawRenderedImage(decoded, at);
+        g.dispose();
+        return out;
+    }
+
+    public static BufferedImage renderOutput(BufferedImage decoded, Plan plan) {
+        return plan.transform.render(decoded, plan.sourceRegion, plan.decodedStep, null);
+    }
+
+    public static final class Plan {
+        private final ImageTransform transform;
+        private final Rectangle sourceRegion;
+        private final int subsample;
+        private final int decodedStep;
+
+        private Plan(ImageTransform transform, Rectangle sourceRegion, int subsample, int decodedStep) {
+            this.transform = transform;
+            this.sourceRegion = sourceRegion;
+            this.subsample = subsample;
+            this.decodedStep = decodedStep;
+        }
+
+        public Plan fromFullImage() {
+            return new Plan(transform, fullSource(), subsample, 1);
+        }
+
+        public Rectangle getView() {
+            return new Rectangle(0, 0, transform.getViewWidth(), transform.getViewHeight());
+        }
+
+        private Rectangle fullSource() {
+            return new Rectangle(0, 0, transform.getSourceWidth(), transform.getSourceHeight());
+        }
+    }
+}
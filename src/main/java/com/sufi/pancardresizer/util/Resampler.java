@@ -0,0 +1,243 @@
+package com.sufi.pancardresizer.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+public final class Resampler {
+    private static final Cache<WeightsKey, Weights> WEIGHTS = Caffeine.newBuilder()
+        .maximumSize(256)
+        .build();
+
+    public enum Filter {
+        // coverage-weighted mean of the source pixels under each output pixel
+        AREA(0.5),
+        BILINEAR(1.0),
+        LANCZOS(3.0);
+
+        private final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        // area averaging for large reductions, Lanczos for mild ones, bilinear for enlargements
+        public static Filter forScale(double scaleX, double scaleY) {
+            if (scaleX <= 0.5 && scaleY <= 0.5) {
+                return AREA;
+            }
+            if (scaleX <= 1.0 && scaleY <= 1.0) {
+                return LANCZOS;
+            }
+            return BILINEAR;
+        }
+
+        private double kernel(double x) {
+            double ax = Math.abs(x);
+            switch (this) {
+                case BILINEAR:
+                    return ax < 1.0 ? 1.0 - ax : 0.0;
+                case LANCZOS:
+                    if (ax < 1e-9) {
+                        return 1.0;
+                    }
+                    if (ax >= support) {
+                        return 0.0;
+                    }
+                    double px = Math.PI * x;
+                    return support * Math.sin(px) * Math.sin(px / support) / (px * px);
+                default:
+                    return ax <= 0.5 ? 1.0 : 0.0;
+            }
+        }
+    }
+
+    private Resampler() {
+    }
+
+    public static BufferedImage resample(BufferedImage src, int width, int height, Filter filter) {
+        return resample(src, width, height, filter, null);
+    }
+
+    public static BufferedImage resample(BufferedImage src, int width, int height, Filter filter, ForkJoinPool pool) {
+        return resample(src, new Rectangle(0, 0, src.getWidth(), src.getHeight()), width, height, filter, pool);
+    }
+
+    // region must lie inside src; only its pixels are read
+    static BufferedImage resample(BufferedImage src, Rectangle region, int width, int height, Filter filter, ForkJoinPool pool) {
+        int srcX = region.x;
+        int srcY = region.y;
+        int srcW = region.width;
+        Weights horizontal = weights(srcW, width, filter);
+        Weights vertical = weights(region.height, height, filter);
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+
+        // horizontal pass first, once per source row: output rows share source rows, so a ring of
+        // filtered rows lets the vertical pass reuse them instead of unpacking each row per tap
+        RowBands.map(pool, width, 0, height, (fromRow, toRow) -> {
+            int ring = vertical.taps;
+            int[] row = new int[srcW];
+            float[][] red = new float[ring][width];
+            float[][] green = new float[ring][width];
+            float[][] blue = new float[ring][width];
+            int[] cached = new int[ring];
+            Arrays.fill(cached, -1);
+            float[] r = new float[width];
+            float[] g = new float[width];
+            float[] b = new float[width];
+            for (int y = fromRow; y < toRow; y++) {
+                Arrays.fill(r, 0f);
+                Arrays.fill(g, 0f);
+                Arrays.fill(b, 0f);
+                int start = vertical.start[y];
+                int offset = y * vertical.taps;
+                for (int k = 0; k < vertical.count[y]; k++) {
+                    int sourceRow = start + k;
+                    int slot = sourceRow % ring;
+                    if (cached[slot] != sourceRow) {
+                        PixelKernels.readRow(src, srcX, srcY + sourceRow, srcW, row);
+                        resampleRow(row, horizontal, red[slot], green[slot], blue[slot], width);
+                        cached[slot] = sourceRow;
+                    }
+                    accumulateRow(red[slot], green[slot], blue[slot], r, g, b, width, vertical.values[offset + k]);
+                }
+                int base = y * width;
+                for (int x = 0; x < width; x++) {
+                    pixels[base + x] = (clamp(r[x]) << 16) | (clamp(g[x]) << 8) | clamp(b[x]);
+                }
+            }
+            return null;
+        });
+        return out;
+    }
+
+    private static void resampleRow(int[] row, Weights horizontal, float[] red, float[] green, float[] blue, int width) {
+        for (int x = 0; x < width; x++) {
+            int from = horizontal.start[x];
+            int weights = x * horizontal.taps;
+            float r = 0;
+            float g = 0;
+            float b = 0;
+            for (int k = 0; k < horizontal.count[x]; k++) {
+                float w = horizontal.values[weights + k];
+                int rgb = row[from + k];
+                r += ((rgb >> 16) & 0xff) * w;
+                g += ((rgb >> 8) & 0xff) * w;
+                b += (rgb & 0xff) * w;
+            }
+            red[x] = r;
+            green[x] = g;
+            blue[x] = b;
+        }
+    }
+
+    private static void accumulateRow(float[] red, float[] green, float[] blue, float[] r, float[] g, float[] b, int n, float w) {
+        for (int x = 0; x < n; x++) {
+            r[x] += red[x] * w;
+            g[x] += green[x] * w;
+            b[x] += blue[x] * w;
+        }
+    }
+
+    private static int clamp(float value) {
+        int v = Math.round(value);
+        return v < 0 ? 0 : Math.min(255, v);
+    }
+
+    private static Weights weights(int srcSize, int dstSize, Filter filter) {
+        return WEIGHTS.get(new WeightsKey(srcSize, dstSize, filter), key -> computeWeights(srcSize, dstSize, filter));
+    }
+
+    private static Weights computeWeights(int srcSize, int dstSize, Filter filter) {
+        double scale = (double) srcSize / dstSize;
+        // reductions stretch the kernel over the source so every source pixel contributes
+        double filterScale = Math.max(1.0, scale);
+        double support = filter == Filter.AREA ? scale / 2.0 + 0.5 : filter.support * filterScale;
+        int taps = (int) Math.ceil(support) * 2 + 1;
+        int[] start = new int[dstSize];
+        int[] count = new int[dstSize];
+        float[] values = new float[dstSize * taps];
+        double[] raw = new double[taps];
+
+        for (int i = 0; i < dstSize; i++) {
+            double center = (i + 0.5) * scale;
+            int lo = Math.max(0, (int) Math.floor(center - support));
+            int hi = Math.min(srcSize, (int) Math.ceil(center + support));
+            double sum = 0;
+            int n = 0;
+            for (int j = lo; j < hi && n < taps; j++, n++) {
+                double w = filter == Filter.AREA
+                    ? overlap(i * scale, (i + 1) * scale, j)
+                    : filter.kernel((j + 0.5 - center) / filterScale);
+                raw[n] = w;
+                sum += w;
+            }
+            while (n > 0 && raw[n - 1] == 0) {
+                n--;
+            }
+            int skip = 0;
+            while (skip < n - 1 && raw[skip] == 0) {
+                skip++;
+            }
+            start[i] = lo + skip;
+            count[i] = n - skip;
+            for (int k = skip; k < n; k++) {
+                values[i * taps + k - skip] = (float) (sum == 0 ? 1.0 / (n - skip) : raw[k] / sum);
+            }
+        }
+        return new Weights(taps, start, count, values);
+    }
+
+    private static double overlap(double from, double to, int pixel) {
+        return Math.max(0.0, Math.min(to, pixel + 1.0) - Math.max(from, pixel));
+    }
+
+    private static final class Weights {
+        private final int taps;
+        private final int[] start;
+        private final int[] count;
+        private final float[] values;
+
+        private Weights(int taps, int[] start, int[] count, float[] values) {
+            this.taps = taps;
+            this.start = start;
+            this.count = count;
+            this.values = values;
+        }
+    }
+
+    private static final class WeightsKey {
+        private final int srcSize;
+        private final int dstSize;
+        private final Filter filter;
+
+        private WeightsKey(int srcSize, int dstSize, Filter filter) {
+            this.srcSize = srcSize;
+            this.dstSize = dstSize;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WeightsKey other)) {
+                return false;
+            }
+            return srcSize == other.srcSize && dstSize == other.dstSize && filter == other.filter;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(srcSize, dstSize, filter);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.sufi.pancardresizer.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+final class RowBands {
+    static final int BAND_ROWS = 256;
+    static final long MIN_PARALLEL_PIXELS = 1_000_000L;
+
+    private RowBands() {
+    }
+
+    interface Band<T> {
+        T apply(int fromRow, int toRow);
+    }
+
+    static <T> List<T> map(ForkJoinPool pool, int width, int fromRow, int toRow, Band<T> band) {
+        List<Callable<T>> tasks = new ArrayList<>();
+        for (int y = fromRow; y < toRow; y += BAND_ROWS) {
+            int from = y;
+            int to = Math.min(toRow, y + BAND_ROWS);
+            tasks.add(() -> band.apply(from, to));
+        }
+
+        List<T> results = new ArrayList<>(tasks.size());
+        if (!shouldFork(pool, width, toRow - fromRow, tasks.size())) {
+            for (int y = fromRow; y < toRow; y += BAND_ROWS) {
+                results.add(band.apply(y, Math.min(toRow, y + BAND_ROWS)));
+            }
+            return results;
+        }
+
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                if (e.getCause() instanceof Error error) {
+                    throw error;
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                // the services turn this into their request_interrupted error
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for row bands");
+            }
+        }
+        return results;
+    }
+
+    private static boolean shouldFork(ForkJoinPool pool, int width, int rows, int bands) {
+        if (pool == null || bands < 2 || pool.getParallelism() < 2 || ForkJoinTask.inForkJoinPool()) {
+            return false;
+        }
+        if ((long) width * rows < MIN_PARALLEL_PIXELS) {
+            return false;
+        }
+        return pool.getQueuedSubmissionCount() == 0 && pool.getActiveThreadCount() < pool.getParallelism();
+    }
+}
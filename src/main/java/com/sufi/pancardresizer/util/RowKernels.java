@@ -0,0 +1,12 @@
+package com.sufi.pancardresizer.util;
+
+// per-row passes over packed RGB; PixelKernels falls back to its scalar loops when no implementation is loaded
+interface RowKernels {
+    void blackAndWhite(int[] row, int[] out, int offset, int w);
+
+    int firstContent(int[] row, int from, int to, int threshold);
+
+    int lastContent(int[] row, int from, int to, int threshold);
+
+    boolean splitBlack(int[] row, int[] baseOut, int[] maskOut, int offset, int w, int blackThreshold);
+}
@@ -0,0 +1,96 @@
+package com.sufi.pancardresizer.util;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// compiled on its own with jdk.incubator.vector; PixelKernels loads it by name only when that module is present
+final class VectorRowKernels implements RowKernels {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private VectorRowKernels() {
+    }
+
+    static RowKernels create() {
+        return LANES >= 4 ? new VectorRowKernels() : null;
+    }
+
+    @Override
+    public void blackAndWhite(int[] row, int[] out, int offset, int w) {
+        IntVector white = IntVector.broadcast(SPECIES, 0xFFFFFF);
+        IntVector black = IntVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(w);
+        int x = 0;
+        for (; x < bound; x += LANES) {
+            IntVector rgb = IntVector.fromArray(SPECIES, row, x);
+            IntVector lum = red(rgb).mul(299).add(green(rgb).mul(587)).add(blue(rgb).mul(114));
+            white.blend(black, lum.lt(PixelKernels.BW_THRESHOLD_MILLI)).intoArray(out, offset + x);
+            if (lum.eq(PixelKernels.BW_THRESHOLD_MILLI).anyTrue()) {
+                PixelKernels.blackAndWhiteRow(row, out, offset, x, x + LANES);
+            }
+        }
+        PixelKernels.blackAndWhiteRow(row, out, offset, x, w);
+    }
+
+    @Override
+    public int firstContent(int[] row, int from, int to, int threshold) {
+        int x = from;
+        for (; x + LANES <= to; x += LANES) {
+            VectorMask<Integer> content = content(IntVector.fromArray(SPECIES, row, x), threshold);
+            if (content.anyTrue()) {
+                return x + content.firstTrue();
+            }
+        }
+        return PixelKernels.firstContentScalar(row, x, to, threshold);
+    }
+
+    @Override
+    public int lastContent(int[] row, int from, int to, int threshold) {
+        int x = to - LANES;
+        for (; x >= from; x -= LANES) {
+            VectorMask<Integer> content = content(IntVector.fromArray(SPECIES, row, x), threshold);
+            if (content.anyTrue()) {
+                return x + content.lastTrue();
+            }
+        }
+        return PixelKernels.lastContentScalar(row, from, x + LANES, threshold);
+    }
+
+    @Override
+    public boolean splitBlack(int[] row, int[] baseOut, int[] maskOut, int offset, int w, int blackThreshold) {
+        IntVector white = IntVector.broadcast(SPECIES, 0xFFFFFF);
+        IntVector opaqueBlack = IntVector.broadcast(SPECIES, 0xFF000000);
+        IntVector clear = IntVector.zero(SPECIES);
+        boolean hasMask = false;
+        int bound = SPECIES.loopBound(w);
+        int x = 0;
+        for (; x < bound; x += LANES) {
+            IntVector rgb = IntVector.fromArray(SPECIES, row, x);
+            VectorMask<Integer> isBlack = red(rgb).compare(VectorOperators.LE, blackThreshold)
+                .and(green(rgb).compare(VectorOperators.LE, blackThreshold))
+                .and(blue(rgb).compare(VectorOperators.LE, blackThreshold));
+            rgb.and(0xFFFFFF).blend(white, isBlack).intoArray(baseOut, offset + x);
+            clear.blend(opaqueBlack, isBlack).intoArray(maskOut, offset + x);
+            hasMask |= isBlack.anyTrue();
+        }
+        return PixelKernels.splitBlackRow(row, baseOut, maskOut, offset, x, w, blackThreshold) || hasMask;
+    }
+
+    private static VectorMask<Integer> content(IntVector rgb, int threshold) {
+        return red(rgb).lt(threshold).or(green(rgb).lt(threshold)).or(blue(rgb).lt(threshold));
+    }
+
+    private static IntVector red(IntVector rgb) {
+        return rgb.lanewise(VectorOperators.LSHR, 16).and(0xff);
+    }
+
+    private static IntVector green(IntVector rgb) {
+        return rgb.lanewise(VectorOperators.LSHR, 8).and(0xff);
+    }
+
+    private static IntVector blue(IntVector rgb) {
+        return rgb.and(0xff);
+    }
+}
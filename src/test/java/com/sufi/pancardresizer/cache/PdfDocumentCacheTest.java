@@ -0,0 +1,184 @@
+package com.sufi.pancardresizer.cache;
+
+import com.sufi.pancardresizer.config.AppProperties;
+import com.sufi.pancardresizer.dto.CacheStatsResponse;
+import com.sufi.pancardresizer.model.StoredFile;
+import com.sufi.pancardresizer.service.StorageService;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PdfDocumentCacheTest {
+    @TempDir
+    Path dir;
+
+    private ForkJoinPool pool;
+    private StorageService storage;
+    private PdfDocumentCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        pool = new ForkJoinPool(4);
+        AppProperties properties = new AppProperties();
+        properties.setTempDir(dir.toString());
+        properties.setCleanupMinutes(30);
+        properties.getUpload().setMaxPerFileBytes(8 * 1024 * 1024);
+        properties.getUpload().setMaxTotalBytes(16 * 1024 * 1024);
+        properties.getUpload().setMaxImagePixels(16_000_000);
+        properties.getCache().setPdfMaxBytes(32 * 1024 * 1024);
+        storage = new StorageService(properties, pool);
+        cache = new PdfDocumentCache(properties, storage, pool);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void pooledDocumentRendersTheSameEveryTime() throws IOException {
+        StoredFile stored = upload(textPdf(3));
+        PDDocument doc = cache.borrow(stored);
+        int[] first = render(doc, 1);
+        cache.release(stored, doc);
+
+        PDDocument again = cache.borrow(stored);
+        assertThat(again).isSameAs(doc);
+        int[] second = render(again, 1);
+        cache.release(stored, again);
+        assertThat(second).isEqualTo(first);
+
+        // a fresh parse of the same file agrees as well
+        PDDocument fresh = cache.borrow(stored);
+        PDDocument other = cache.borrow(stored);
+        assertThat(other).isNotSameAs(fresh);
+        assertThat(render(other, 1)).isEqualTo(first);
+        cache.release(stored, fresh);
+        cache.release(stored, other);
+    }
+
+    @Test
+    void idleDocumentsWeighTheirParsedObjectsNotTheirFileSize() throws Exception {
+        StoredFile text = upload(textPdf(60));
+        StoredFile scan = upload(scanPdf());
+
+        PDDocument textDoc = cache.borrow(text);
+        int textWeight = PdfDocumentCache.weigh(textDoc);
+        cache.release(text, textDoc);
+        PDDocument scanDoc = cache.borrow(scan);
+        int scanWeight = PdfDocumentCache.weigh(scanDoc);
+        cache.release(scan, scanDoc);
+
+        // text parses into many small objects; a scan is a few objects around one large mapped stream
+        assertThat(textWeight).isGreaterThan((int) text.getSizeBytes());
+        assertThat(scanWeight).isLessThan((int) scan.getSizeBytes());
+        assertThat(textDoc.getDocument().getXrefTable().size()).isGreaterThan(60);
+        awaitWeighted((long) textWeight + scanWeight);
+
+        // two idle copies weigh twice as much
+        PDDocument first = cache.borrow(text);
+        PDDocument second = cache.borrow(text);
+        cache.release(text, first);
+        cache.release(text, second);
+        awaitWeighted(2L * textWeight + scanWeight);
+    }
+
+    // Caffeine applies writes to its eviction policy asynchronously
+    private void awaitWeighted(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (weighted() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(weighted()).isEqualTo(expected);
+    }
+
+    private long weighted() {
+        for (CacheStatsResponse stats : cache.stats()) {
+            if (stats.getName().equals("pdfDocuments")) {
+                return stats.getWeightedBytes();
+            }
+        }
+        throw new AssertionError("no pdfDocuments region");
+    }
+
+    private static int[] render(PDDocument doc, int page) throws IOException {
+        BufferedImage image = new PDFRenderer(doc).renderImageWithDPI(page, 100);
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private StoredFile upload(byte[] pdf) {
+        MultipartFile file = new MockMultipartFile("files", "source.pdf", "application/pdf", pdf);
+        return storage.getFile(storage.storeFiles(new MultipartFile[]{file}).get(0).getFileId());
+    }
+
+    private static byte[] textPdf(int pages) throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            for (int i = 0; i < pages; i++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                doc.addPage(page);
+                try (PDPageContentStream cs = new PDPageContentStream(doc, page)) {
+                    cs.beginText();
+                    cs.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 11);
+                    cs.newLineAtOffset(60, 780);
+                    for (int line = 0; line < 40; line++) {
+                        cs.showText("Page " + i + ", line " + line + ": Permanent Account Number");
+                        cs.newLineAtOffset(0, -16);
+                    }
+                    cs.endText();
+                    cs.setStrokingColor(Color.BLUE);
+                    cs.addRect(50, 50, 495, 740);
+                    cs.stroke();
+                }
+            }
+            return save(doc);
+        }
+    }
+
+    private static byte[] scanPdf() throws IOException {
+        Random random = new Random(1);
+        BufferedImage noise = new BufferedImage(600, 800, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < noise.getHeight(); y++) {
+            for (int x = 0; x < noise.getWidth(); x++) {
+                noise.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage(PDRectangle.A4);
+            doc.addPage(page);
+            PDImageXObject image = LosslessFactory.createFromImage(doc, noise);
+            try (PDPageContentStream cs = new PDPageContentStream(doc, page)) {
+                cs.drawImage(image, 0, 0, PDRectangle.A4.getWidth(), PDRectangle.A4.getHeight());
+            }
+            return save(doc);
+        }
+    }
+
+    private static byte[] save(PDDocument doc) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doc.save(out);
+        return out.toByteArray();
+    }
+}
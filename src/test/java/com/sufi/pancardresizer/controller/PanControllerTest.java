@@ -0,0 +1,220 @@
+package com.sufi.pancardresizer.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = "app.temp-dir=${java.io.tmpdir}/pan-resizer-controller-test")
+@AutoConfigureMockMvc
+class PanControllerTest {
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper json;
+
+    @Test
+    void sizeEstimatesAndExactSizesAreCachedSeparately() throws Exception {
+        String fileId = upload(png(700, 500, 1));
+        String body = "{\"fileId\":\"" + fileId + "\",\"maxKb\":20}";
+
+        JsonNode estimate = size(body, false);
+        assertThat(estimate.get("exact").asBoolean()).isFalse();
+
+        // a cached estimate must not answer an exact request
+        JsonNode exact = size(body, true);
+        assertThat(exact.get("exact").asBoolean()).isTrue();
+        byte[] rendered = render(post("/api/render/photo-kb").contentType(MediaType.APPLICATION_JSON).content(body));
+        assertThat(exact.get("sizeBytes").asLong()).isEqualTo(rendered.length);
+
+        // the exact result now answers estimates as well
+        assertThat(size(body, false)).isEqualTo(exact);
+
+        // a different target is its own entry
+        JsonNode other = size("{\"fileId\":\"" + fileId + "\",\"maxKb\":12}", true);
+        assertThat(other.get("sizeBytes").asLong()).isEqualTo(12 * 1024);
+    }
+
+    @Test
+    void previewsAndSizesLiveInSeparateRegions() throws Exception {
+        String fileId = upload(png(640, 480, 2));
+        JsonNode before = regions();
+
+        byte[] first = render(get("/api/preview").param("fileId", fileId).param("rotate", "90"));
+        byte[] again = render(get("/api/preview").param("fileId", fileId).param("rotate", "90"));
+        byte[] unrotated = render(get("/api/preview").param("fileId", fileId));
+        assertThat(again).isEqualTo(first);
+        assertThat(unrotated).isNotEqualTo(first);
+        size("{\"fileId\":\"" + fileId + "\",\"maxKb\":20}", false);
+
+        JsonNode after = regions();
+        assertThat(count(after, "preview", "entries") - count(before, "preview", "entries")).isEqualTo(2);
+        assertThat(count(after, "preview", "hitCount") - count(before, "preview", "hitCount")).isEqualTo(1);
+        assertThat(count(after, "kbSize", "entries") - count(before, "kbSize", "entries")).isEqualTo(1);
+        assertThat(count(after, "pdfPreview", "entries") - count(before, "pdfPreview", "entries")).isZero();
+    }
+
+    @Test
+    void matchingETagAnswers304WithoutRendering() throws Exception {
+        String fileId = upload(png(640, 480, 3));
+        MvcResult rendered = mvc.perform(get("/api/preview").param("fileId", fileId).param("zoom", "1.5"))
+            .andExpect(status().isOk())
+            .andReturn();
+        String etag = rendered.getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(etag).startsWith("\"").endsWith("\"");
+        assertThat(rendered.getResponse().getHeader(HttpHeaders.CACHE_CONTROL)).contains("max-age=3600").contains("private");
+
+        JsonNode before = regions();
+        for (String ifNoneMatch : new String[]{etag, "W/" + etag, "\"other\", " + etag, "*"}) {
+            MvcResult result = mvc.perform(get("/api/preview").param("fileId", fileId).param("zoom", "1.5")
+                    .header(HttpHeaders.IF_NONE_MATCH, ifNoneMatch))
+                .andExpect(status().isNotModified())
+                .andReturn();
+            assertThat(result.getResponse().getHeader(HttpHeaders.ETAG)).isEqualTo(etag);
+            assertThat(result.getResponse().getContentAsByteArray()).isEmpty();
+        }
+        JsonNode after = regions();
+        assertThat(count(after, "preview", "hitCount")).isEqualTo(count(before, "preview", "hitCount"));
+        assertThat(count(after, "preview", "missCount")).isEqualTo(count(before, "preview", "missCount"));
+
+        // other parameters or a stale tag still render
+        MvcResult fresh = mvc.perform(get("/api/preview").param("fileId", fileId).param("zoom", "2")
+                .header(HttpHeaders.IF_NONE_MATCH, etag))
+            .andExpect(status().isOk())
+            .andReturn();
+        assertThat(fresh.getResponse().getHeader(HttpHeaders.ETAG)).isNotEqualTo(etag);
+    }
+
+    @Test
+    void invalidRequestsAreRejectedBeforeTheETagCheck() throws Exception {
+        String pdfId = upload(pdf(), "source.pdf", MediaType.APPLICATION_PDF_VALUE);
+        mvc.perform(get("/api/preview").param("fileId", pdfId).param("page", "3").header(HttpHeaders.IF_NONE_MATCH, "*"))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.code").value("page_out_of_range"));
+        mvc.perform(get("/api/preview").param("fileId", pdfId).param("page", "-1").header(HttpHeaders.IF_NONE_MATCH, "*"))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.code").value("page_out_of_range"));
+        mvc.perform(get("/api/kb/preview").param("fileId", "missing").header(HttpHeaders.IF_NONE_MATCH, "*"))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.code").value("file_not_found"));
+
+        // the valid page of the same document still honours the tag
+        mvc.perform(get("/api/preview").param("fileId", pdfId).param("page", "0").header(HttpHeaders.IF_NONE_MATCH, "*"))
+            .andExpect(status().isNotModified());
+    }
+
+    @Test
+    void documentsStreamWithTheirLength() throws Exception {
+        String pdfId = upload(pdf(), "source.pdf", MediaType.APPLICATION_PDF_VALUE);
+        String body = "{\"fileIds\":[\"" + pdfId + "\"]}";
+        MvcResult started = mvc.perform(post("/api/render/documents").contentType(MediaType.APPLICATION_JSON).content(body))
+            .andReturn();
+        assertThat(started.getRequest().isAsyncStarted()).isTrue();
+        MvcResult result = mvc.perform(asyncDispatch(started)).andExpect(status().isOk()).andReturn();
+
+        byte[] data = result.getResponse().getContentAsByteArray();
+        assertThat(result.getResponse().getHeader(HttpHeaders.CONTENT_LENGTH)).isEqualTo(String.valueOf(data.length));
+        try (PDDocument doc = Loader.loadPDF(data)) {
+            assertThat(doc.getNumberOfPages()).isEqualTo(1);
+        }
+    }
+
+    private JsonNode size(String body, boolean exact) throws Exception {
+        MvcResult result = mvc.perform(post("/api/kb/size/photo").param("exact", String.valueOf(exact))
+                .contentType(MediaType.APPLICATION_JSON).content(body))
+            .andExpect(status().isOk())
+            .andReturn();
+        return json.readTree(result.getResponse().getContentAsByteArray());
+    }
+
+    private JsonNode regions() throws Exception {
+        MvcResult result = mvc.perform(get("/api/stats/cache")).andExpect(status().isOk()).andReturn();
+        return json.readTree(result.getResponse().getContentAsByteArray());
+    }
+
+    private static long count(JsonNode stats, String region, String field) {
+        for (JsonNode node : stats) {
+            if (node.get("name").asText().equals(region)) {
+                return node.get(field).asLong();
+            }
+        }
+        throw new AssertionError("no cache region " + region);
+    }
+
+    // document endpoints answer with a streaming body, which MockMvc completes through an async dispatch
+    private byte[] render(RequestBuilder request) throws Exception {
+        MvcResult result = mvc.perform(request).andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            result = mvc.perform(asyncDispatch(result)).andReturn();
+        }
+        assertThat(result.getResponse().getStatus()).isEqualTo(200);
+        String length = result.getResponse().getHeader(HttpHeaders.CONTENT_LENGTH);
+        if (length != null) {
+            assertThat(Long.parseLong(length)).isEqualTo(result.getResponse().getContentAsByteArray().length);
+        }
+        return result.getResponse().getContentAsByteArray();
+    }
+
+    private String upload(byte[] data) throws Exception {
+        return upload(data, "source.png", MediaType.IMAGE_PNG_VALUE);
+    }
+
+    private String upload(byte[] data, String name, String contentType) throws Exception {
+        MockMultipartFile file = new MockMultipartFile("files", name, contentType, data);
+        MvcResult result = mvc.perform(multipart("/api/upload").file(file)).andExpect(status().isOk()).andReturn();
+        return json.readTree(result.getResponse().getContentAsByteArray()).get("files").get(0).get("fileId").asText();
+    }
+
+    private static byte[] pdf() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            doc.addPage(new PDPage(PDRectangle.A4));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            doc.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] png(int w, int h, long seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(220, 180, 150), w, h, new Color(40, 70, 150)));
+        g.fillRect(0, 0, w, h);
+        for (int i = 0; i < 30; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillRect(random.nextInt(w), random.nextInt(h), 10 + random.nextInt(w / 4), 10 + random.nextInt(h / 4));
+        }
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
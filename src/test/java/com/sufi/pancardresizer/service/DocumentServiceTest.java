@@ -0,0 +1,285 @@
+package com.sufi.pancardresizer.service;
+
+import com.sufi.pancardresizer.cache.DecodedImageCache;
+import com.sufi.pancardresizer.cache.PdfDocumentCache;
+import com.sufi.pancardresizer.config.AppProperties;
+import com.sufi.pancardresizer.model.RenderedOutput;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DocumentServiceTest {
+    // DocumentService.PLAIN_LEVELS and MRC_LEVELS
+    private static final int PLAIN = 4;
+    private static final int MRC = 5;
+
+    @TempDir
+    Path dir;
+
+    private ForkJoinPool pool;
+    private StorageService storage;
+    private DocumentService documents;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        pool = new ForkJoinPool(4);
+        AppProperties properties = new AppProperties();
+        properties.setTempDir(dir.toString());
+        properties.setCleanupMinutes(30);
+        properties.getUpload().setMaxPerFileBytes(8 * 1024 * 1024);
+        properties.getUpload().setMaxTotalBytes(16 * 1024 * 1024);
+        properties.getUpload().setMaxImagePixels(16_000_000);
+        properties.getCache().setDecodedMaxBytes(32 * 1024 * 1024);
+        properties.getCache().setPdfMaxBytes(32 * 1024 * 1024);
+        storage = new StorageService(properties, pool);
+        documents = new DocumentService(storage, new DecodedImageCache(properties, storage),
+            new PdfDocumentCache(properties, storage, pool), pool);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void stepsDownUntilTheTotalFits() throws IOException {
+        long[][] sizes = {{100, 90, 70, 60}, {100, 95, 90, 85}};
+        int[] levels = {0, 0};
+
+        long total = DocumentService.stepDown(levels, new int[]{PLAIN, PLAIN}, table(sizes), 200, 170);
+        assertThat(total).isEqualTo(170);
+        // the first page saves more per step both times; the second is left alone
+        assertThat(levels).containsExactly(2, 0);
+    }
+
+    @Test
+    void takesOneStepAtATimeAndSkipsLevelsThatSaveNothing() throws IOException {
+        // the first page only saves from its third level on, 10 per step; the second saves 12 in one
+        long[][] sizes = {{100, 100, 80, 75}, {100, 88, 87, 86}};
+        int[] levels = {0, 0};
+
+        long total = DocumentService.stepDown(levels, new int[]{PLAIN, PLAIN}, table(sizes), 200, 199);
+        assertThat(total).isEqualTo(188);
+        assertThat(levels).containsExactly(0, 1);
+
+        total = DocumentService.stepDown(levels, new int[]{PLAIN, PLAIN}, table(sizes), total, 180);
+        assertThat(total).isEqualTo(168);
+        assertThat(levels).containsExactly(2, 1);
+    }
+
+    @Test
+    void vectorPagesKeepTheirSizeAndAnUnreachableBudgetEndsAtTheFloor() throws IOException {
+        long[][] sizes = {{500}, {100, 90, 60, 50, 45}, {100, 95, 90, 85}};
+        int[] levels = {0, 0, 0};
+
+        long total = DocumentService.stepDown(levels, new int[]{1, MRC, PLAIN}, table(sizes), 700, 400);
+        assertThat(levels).containsExactly(0, MRC - 1, PLAIN - 1);
+        assertThat(total).isEqualTo(500 + 45 + 85);
+    }
+
+    @Test
+    void smallPdfPagesStayVectorAndHeavyOnesAreRasterized() throws IOException {
+        String fileId = upload(textAndScanPdf());
+        RenderedOutput output = documents.renderDocumentsByKb(List.of(fileId), 300);
+        assertThat(output.getLength()).isLessThanOrEqualTo(300 * 1024);
+
+        try (PDDocument pdf = Loader.loadPDF(bytes(output))) {
+            assertThat(pdf.getNumberOfPages()).isEqualTo(2);
+            PDResources text = pdf.getPage(0).getResources();
+            assertThat(text.getFontNames()).isNotEmpty();
+            assertThat(images(text)).isEmpty();
+
+            List<PDImageXObject> scan = images(pdf.getPage(1).getResources());
+            assertThat(scan).hasSize(1);
+            assertThat(scan.get(0).getSuffix()).isEqualTo("jpg");
+        }
+    }
+
+    @Test
+    void withoutRasterizingEveryPdfPageIsCopiedAsItIs() throws IOException {
+        String fileId = upload(textAndScanPdf());
+        RenderedOutput output = documents.renderDocuments(List.of(fileId));
+
+        try (PDDocument pdf = Loader.loadPDF(bytes(output))) {
+            assertThat(pdf.getPage(0).getResources().getFontNames()).isNotEmpty();
+            List<PDImageXObject> scan = images(pdf.getPage(1).getResources());
+            assertThat(scan).hasSize(1);
+            assertThat(scan.get(0).getSuffix()).isEqualTo("png");
+        }
+    }
+
+    @Test
+    void largeOutputsSpillToAFileThatIsGoneOnceOpened() throws IOException {
+        byte[] source = textAndScanPdf();
+        assertThat(source.length).isGreaterThan(256 * 1024);
+        RenderedOutput output = documents.renderDocuments(List.of(upload(source)));
+
+        // the unlinked file still serves every reader in full
+        byte[] first = bytes(output);
+        assertThat(first).hasSize(output.getLength());
+        assertThat(bytes(output)).isEqualTo(first);
+        try (PDDocument pdf = Loader.loadPDF(first)) {
+            assertThat(pdf.getNumberOfPages()).isEqualTo(2);
+        }
+        try (Stream<Path> files = Files.list(dir.resolve("pdf-scratch"))) {
+            assertThat(files.filter(path -> path.getFileName().toString().startsWith("output-"))).isEmpty();
+        }
+    }
+
+    @Test
+    void mrcPageRendersBackCloseToTheSource() throws IOException {
+        BufferedImage source = textOnColour(300, 200);
+        String fileId = upload(png(source), "scan.png", "image/png");
+        RenderedOutput output = documents.renderDocumentsByKb(List.of(fileId), 2048);
+
+        BufferedImage rendered;
+        try (PDDocument pdf = Loader.loadPDF(bytes(output))) {
+            List<PDImageXObject> layers = images(pdf.getPage(0).getResources());
+            assertThat(layers).hasSize(2);
+            assertThat(layers).anyMatch(PDImageXObject::isStencil);
+            // pages are laid out at 200 dpi with a 12pt margin: at 600 dpi every source pixel is 3x3, offset by 100
+            rendered = new PDFRenderer(pdf).renderImageWithDPI(0, 600);
+        }
+        assertThat(rendered.getWidth()).isEqualTo(3 * 300 + 200);
+
+        long diff = 0;
+        for (int y = 0; y < 200; y++) {
+            for (int x = 0; x < 300; x++) {
+                int expected = source.getRGB(x, y);
+                int actual = rendered.getRGB(100 + 3 * x + 1, 100 + 3 * y + 1);
+                if ((expected & 0xFFFFFF) == 0) {
+                    // an inverted stencil (BlackIs1 or Decode the wrong way round) paints the text white
+                    assertThat(luma(actual)).as("text at %d,%d", x, y).isLessThan(40);
+                } else {
+                    assertThat(luma(actual)).as("background at %d,%d", x, y).isGreaterThan(100);
+                }
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    diff += Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                }
+            }
+        }
+        assertThat((double) diff / (300 * 200 * 3)).isLessThan(6.0);
+    }
+
+    private static DocumentService.LevelSizes table(long[][] sizes) {
+        return (page, level) -> sizes[page][level];
+    }
+
+    private String upload(byte[] pdf) throws IOException {
+        return upload(pdf, "source.pdf", "application/pdf");
+    }
+
+    private String upload(byte[] data, String name, String contentType) throws IOException {
+        MultipartFile file = new MockMultipartFile("files", name, contentType, data);
+        return storage.storeFiles(new MultipartFile[]{file}).get(0).getFileId();
+    }
+
+    private static byte[] png(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static int luma(int rgb) {
+        return (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+    }
+
+    // solid black strokes over a light gradient: the strokes go to the stencil, the rest to the JPEG
+    private static BufferedImage textOnColour(int w, int h) {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(250, 215, 180), w, h, new Color(170, 205, 240)));
+        g.fillRect(0, 0, w, h);
+        g.setColor(Color.BLACK);
+        for (int i = 0; i < 12; i++) {
+            g.fillRect(20 + i * 22, 30, 6, 60);
+            g.fillRect(20 + i * 22, 120, 14, 4 + i);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static byte[] bytes(RenderedOutput output) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static List<PDImageXObject> images(PDResources resources) throws IOException {
+        List<PDImageXObject> images = new ArrayList<>();
+        for (COSName name : resources.getXObjectNames()) {
+            if (resources.getXObject(name) instanceof PDImageXObject image) {
+                images.add(image);
+            }
+        }
+        return images;
+    }
+
+    // a page of text that is cheap as it is, then a page holding one losslessly stored photo of noise
+    private static byte[] textAndScanPdf() throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            PDPage text = new PDPage(PDRectangle.A4);
+            doc.addPage(text);
+            try (PDPageContentStream cs = new PDPageContentStream(doc, text)) {
+                cs.beginText();
+                cs.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 14);
+                cs.newLineAtOffset(72, 700);
+                cs.showText("Permanent Account Number");
+                cs.endText();
+            }
+
+            PDPage scan = new PDPage(new PDRectangle(150, 180));
+            doc.addPage(scan);
+            PDImageXObject image = LosslessFactory.createFromImage(doc, noise(500, 600, 1));
+            try (PDPageContentStream cs = new PDPageContentStream(doc, scan)) {
+                cs.drawImage(image, 0, 0, 150, 180);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            doc.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    // mid-tone noise: nothing dark enough for the text stencil, so the page is one plain JPEG
+    private static BufferedImage noise(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                image.setRGB(x, y, (64 + random.nextInt(160)) << 16 | (64 + random.nextInt(160)) << 8 | (64 + random.nextInt(160)));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,175 @@
+package com.sufi.pancardresizer.service;
+
+import com.sufi.pancardresizer.cache.DecodedImageCache;
+import com.sufi.pancardresizer.cache.RenderCache;
+import com.sufi.pancardresizer.config.AppProperties;
+import com.sufi.pancardresizer.dto.RenderPhotoRequest;
+import com.sufi.pancardresizer.exception.AppException;
+import com.sufi.pancardresizer.util.ImageUtils;
+import com.sufi.pancardresizer.util.JpegProbe;
+import com.sufi.pancardresizer.util.QualitySearch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ImageServiceTest {
+    private static final int W = 1800;
+    private static final int H = 1200;
+    // ImageService.MIN_EXACT_SCALE; the side limit does not bind at this size
+    private static final double MIN_SCALE = Math.pow(0.9, 9);
+
+    @TempDir
+    Path dir;
+
+    private ForkJoinPool pool;
+    private StorageService storage;
+    private ImageService images;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        pool = new ForkJoinPool(4);
+        AppProperties properties = new AppProperties();
+        properties.setTempDir(dir.toString());
+        properties.setCleanupMinutes(30);
+        properties.getUpload().setMaxPerFileBytes(8 * 1024 * 1024);
+        properties.getUpload().setMaxTotalBytes(16 * 1024 * 1024);
+        properties.getUpload().setMaxImagePixels(16_000_000);
+        properties.getCache().setDecodedMaxBytes(32 * 1024 * 1024);
+        properties.getCache().setRenderMaxBytes(8 * 1024 * 1024);
+        storage = new StorageService(properties, pool);
+        images = new ImageService(storage, new DecodedImageCache(properties, storage), new RenderCache(properties, storage),
+            properties, pool);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void hitsTheTargetWithoutScalingWhenQualityIsEnough() throws IOException {
+        String fileId = upload(photo(900, 600, 1));
+        byte[] data = images.renderPhotoByKb(request(fileId, 40));
+
+        assertThat(data).hasSize(40 * 1024);
+        assertThat(payload(data)).isGreaterThanOrEqualTo((int) (40 * 1024 * 0.85));
+        BufferedImage decoded = decode(data);
+        assertThat(decoded.getWidth()).isEqualTo(900);
+        assertThat(decoded.getHeight()).isEqualTo(600);
+    }
+
+    @Test
+    void scalesDownToHitATargetQualityAloneCannotReach() throws IOException {
+        BufferedImage source = noise(W, H, 2);
+        int fullSize = JpegProbe.imageIo(source, ImageService.DPI, Integer.MAX_VALUE).size(QualitySearch.MIN_QUALITY);
+        int targetKb = 120;
+        assertThat(fullSize).isGreaterThan(targetKb * 1024);
+
+        byte[] data = images.renderPhotoByKb(request(upload(source), targetKb));
+        assertThat(data).hasSize(targetKb * 1024);
+        assertThat(payload(data)).isGreaterThanOrEqualTo((int) (targetKb * 1024 * 0.85));
+        BufferedImage decoded = decode(data);
+        assertThat(decoded.getWidth()).isLessThan(W).isGreaterThanOrEqualTo((int) Math.round(W * MIN_SCALE));
+    }
+
+    @Test
+    void triesTheSmallestScaleBeforeGivingUp() throws IOException {
+        BufferedImage source = noise(W, H, 3);
+        int smallest = sizeAtSmallestScale(source);
+        // only scales at or next to the smallest one fit this target
+        int targetKb = (smallest + 1023) / 1024;
+        assertThat(targetKb).isGreaterThanOrEqualTo(10);
+
+        byte[] data = images.renderPhotoByKb(request(upload(source), targetKb));
+        assertThat(data).hasSize(targetKb * 1024);
+        assertThat(decode(data).getWidth()).isGreaterThanOrEqualTo((int) Math.round(W * MIN_SCALE));
+    }
+
+    @Test
+    void rejectsATargetBelowTheSmallestScale() throws IOException {
+        BufferedImage source = noise(W, H, 4);
+        int smallest = sizeAtSmallestScale(source);
+        int targetKb = (smallest - 1) / 1024;
+        assertThat(targetKb).isGreaterThanOrEqualTo(10);
+
+        String fileId = upload(source);
+        assertThatThrownBy(() -> images.renderPhotoByKb(request(fileId, targetKb)))
+            .isInstanceOf(AppException.class)
+            .extracting("code").isEqualTo("target_size_unreachable");
+    }
+
+    private static int sizeAtSmallestScale(BufferedImage source) throws IOException {
+        BufferedImage scaled = ImageUtils.zoom(source, MIN_SCALE);
+        return JpegProbe.imageIo(scaled, ImageService.DPI, Integer.MAX_VALUE).size(QualitySearch.MIN_QUALITY);
+    }
+
+    private String upload(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        MultipartFile file = new MockMultipartFile("files", "source.png", "image/png", out.toByteArray());
+        return storage.storeFiles(new MultipartFile[]{file}).get(0).getFileId();
+    }
+
+    private static RenderPhotoRequest request(String fileId, int maxKb) {
+        RenderPhotoRequest request = new RenderPhotoRequest();
+        request.setFileId(fileId);
+        request.setMaxKb(maxKb);
+        return request;
+    }
+
+    // the JPEG without the zero padding that brings it up to the exact size
+    private static int payload(byte[] data) {
+        int end = data.length;
+        while (end > 0 && data[end - 1] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private static BufferedImage decode(byte[] data) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(data));
+        assertThat(decoded).isNotNull();
+        return decoded;
+    }
+
+    private static BufferedImage photo(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(220, 180, 150), w, h, new Color(40, 70, 150)));
+        g.fillRect(0, 0, w, h);
+        for (int i = 0; i < 40; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 160));
+            g.fillOval(random.nextInt(w), random.nextInt(h), 10 + random.nextInt(w / 3), 10 + random.nextInt(h / 3));
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage noise(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,193 @@
+package com.sufi.pancardresizer.service;
+
+import com.sufi.pancardresizer.cache.DecodedImageCache;
+import com.sufi.pancardresizer.config.AppProperties;
+import com.sufi.pancardresizer.exception.AppException;
+import com.sufi.pancardresizer.model.StoredFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StorageServiceTest {
+    @TempDir
+    Path dir;
+
+    private ForkJoinPool pool;
+    private AppProperties properties;
+    private StorageService storage;
+    private final List<String> removed = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        pool = new ForkJoinPool(4);
+        properties = new AppProperties();
+        properties.setTempDir(dir.toString());
+        properties.setCleanupMinutes(30);
+        properties.getUpload().setMaxPerFileBytes(5 * 1024 * 1024);
+        properties.getUpload().setMaxTotalBytes(10 * 1024 * 1024);
+        properties.getUpload().setMaxImagePixels(16_000_000);
+        properties.getCache().setDecodedMaxBytes(16 * 1024 * 1024);
+        storage = new StorageService(properties, pool);
+        storage.addContentRemovalListener(removed::add);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void identicalUploadsShareOneBlob() throws IOException {
+        byte[] png = png(Color.RED);
+        StoredFile first = storage.storeFiles(files(png("a.png", png))).get(0);
+        StoredFile second = storage.storeFiles(files(png("b.png", png))).get(0);
+
+        assertThat(second.getFileId()).isNotEqualTo(first.getFileId());
+        assertThat(second.getContentHash()).isEqualTo(first.getContentHash());
+        assertThat(second.getPath()).isEqualTo(first.getPath());
+        assertThat(second.getOriginalName()).isEqualTo("b.png");
+        assertThat(blobFiles()).containsExactly(first.getPath());
+    }
+
+    @Test
+    void blobOutlivesAllButItsLastReference() throws IOException {
+        byte[] png = png(Color.GREEN);
+        List<StoredFile> stored = storage.storeFiles(files(png("a.png", png), png("b.png", png), png("c.png", png)));
+        Path path = stored.get(0).getPath();
+
+        storage.removeFile(stored.get(0).getFileId());
+        storage.removeFile(stored.get(1).getFileId());
+        assertThat(path).exists();
+        assertThat(storage.getFile(stored.get(2).getFileId()).getPath()).isEqualTo(path);
+        assertThat(removed).isEmpty();
+
+        storage.removeFile(stored.get(2).getFileId());
+        assertThat(path).doesNotExist();
+        assertThat(removed).containsExactly(stored.get(2).getContentHash());
+        assertThatThrownBy(() -> storage.getFile(stored.get(2).getFileId()))
+            .isInstanceOf(AppException.class)
+            .extracting("code").isEqualTo("file_not_found");
+    }
+
+    @Test
+    void parallelDuplicatesInOneBatchCountEveryReference() throws IOException {
+        byte[] png = png(Color.YELLOW);
+        MultipartFile[] batch = new MultipartFile[8];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = png("copy-" + i + ".png", png);
+        }
+        List<StoredFile> stored = storage.storeFiles(batch);
+        assertThat(stored).extracting(StoredFile::getPath).containsOnly(stored.get(0).getPath());
+        assertThat(blobFiles()).hasSize(1);
+
+        for (int i = 0; i < stored.size() - 1; i++) {
+            storage.removeFile(stored.get(i).getFileId());
+        }
+        assertThat(stored.get(0).getPath()).exists();
+        storage.removeFile(stored.get(stored.size() - 1).getFileId());
+        assertThat(stored.get(0).getPath()).doesNotExist();
+        assertThat(removed).hasSize(1);
+    }
+
+    @Test
+    void removingAFileTwiceReleasesItOnce() throws IOException {
+        byte[] png = png(Color.BLUE);
+        StoredFile first = storage.storeFiles(files(png("a.png", png))).get(0);
+        StoredFile second = storage.storeFiles(files(png("b.png", png))).get(0);
+
+        storage.removeFile(first.getFileId());
+        storage.removeFile(first.getFileId());
+        assertThat(second.getPath()).exists();
+        assertThat(removed).isEmpty();
+    }
+
+    @Test
+    void cleanupReleasesEveryExpiredReference() throws IOException {
+        byte[] shared = png(Color.ORANGE);
+        List<StoredFile> stored = storage.storeFiles(files(png("a.png", shared), png("b.png", shared), png("c.png", png(Color.PINK))));
+
+        storage.cleanupExpired();
+        assertThat(blobFiles()).hasSize(2);
+        assertThat(removed).isEmpty();
+
+        properties.setCleanupMinutes(-1);
+        storage.cleanupExpired();
+        assertThat(blobFiles()).isEmpty();
+        assertThat(removed).containsExactlyInAnyOrder(stored.get(0).getContentHash(), stored.get(2).getContentHash());
+    }
+
+    @Test
+    void failedBatchDoesNotReleaseBlobsHeldByOtherUploads() throws IOException {
+        byte[] png = png(Color.CYAN);
+        StoredFile kept = storage.storeFiles(files(png("kept.png", png))).get(0);
+
+        MultipartFile broken = new MockMultipartFile("files", "broken.png", "image/png", new byte[]{1, 2, 3, 4});
+        assertThatThrownBy(() -> storage.storeFiles(files(png("again.png", png), broken)))
+            .isInstanceOf(AppException.class)
+            .extracting("code").isEqualTo("invalid_image");
+
+        assertThat(kept.getPath()).exists();
+        assertThat(removed).isEmpty();
+        storage.removeFile(kept.getFileId());
+        assertThat(kept.getPath()).doesNotExist();
+        assertThat(removed).containsExactly(kept.getContentHash());
+    }
+
+    @Test
+    void removalListenerInvalidatesDecodedImages() throws IOException {
+        DecodedImageCache decoded = new DecodedImageCache(properties, storage);
+        byte[] png = png(Color.MAGENTA);
+        StoredFile first = storage.storeFiles(files(png("a.png", png))).get(0);
+        StoredFile second = storage.storeFiles(files(png("b.png", png))).get(0);
+        decoded.get(first);
+
+        storage.removeFile(first.getFileId());
+        assertThat(decoded.getIfPresent(second)).isNotNull();
+
+        storage.removeFile(second.getFileId());
+        assertThat(decoded.getIfPresent(second)).isNull();
+    }
+
+    private List<Path> blobFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile).toList();
+        }
+    }
+
+    private static MultipartFile[] files(MultipartFile... files) {
+        return files;
+    }
+
+    private static MultipartFile png(String name, byte[] data) {
+        return new MockMultipartFile("files", name, "image/png", data);
+    }
+
+    private static byte[] png(Color color) throws IOException {
+        BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, 40, 30);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
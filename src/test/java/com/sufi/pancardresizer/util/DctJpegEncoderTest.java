@@ -0,0 +1,153 @@
+package com.sufi.pancardresizer.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+class DctJpegEncoderTest {
+    private static final float[] QUALITIES = {0.2f, 0.35f, 0.5f, 0.62f, 0.75f, 0.9f, 0.95f};
+
+    @Test
+    void outputDecodesWithImageIo() throws IOException {
+        int[][] sizes = {{1, 1}, {8, 8}, {16, 16}, {17, 9}, {333, 251}, {640, 480}};
+        for (int[] size : sizes) {
+            DctJpegEncoder.Prepared prepared = DctJpegEncoder.prepare(photo(size[0], size[1], size[0]));
+            for (float q : QUALITIES) {
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(prepared.encode(q, 200)));
+                assertThat(decoded).as("%dx%d q=%.2f", size[0], size[1], q).isNotNull();
+                assertThat(decoded.getWidth()).isEqualTo(size[0]);
+                assertThat(decoded.getHeight()).isEqualTo(size[1]);
+            }
+        }
+    }
+
+    @Test
+    void decodedImageStaysCloseToTheSource() throws IOException {
+        BufferedImage source = photo(413, 531, 1);
+        DctJpegEncoder.Prepared prepared = DctJpegEncoder.prepare(source);
+        double previous = 0;
+        for (float q : QUALITIES) {
+            double dct = psnr(source, ImageIO.read(new ByteArrayInputStream(prepared.encode(q, 200))));
+            double imageIo = psnr(source, ImageIO.read(new ByteArrayInputStream(ImageUtils.writeJpegWithQualityAndDpi(source, q, 200))));
+            assertThat(dct).as("q=%.2f", q).isGreaterThan(28.0);
+            assertThat(dct).as("q=%.2f against ImageIO", q).isCloseTo(imageIo, offset(1.0));
+            assertThat(dct).as("q=%.2f monotonic", q).isGreaterThan(previous - 0.05);
+            previous = dct;
+        }
+    }
+
+    @Test
+    void encodedSizeIsTheLengthOfTheEncoding() {
+        BufferedImage[] images = {photo(333, 251, 2), noise(129, 97, 3), flat(64, 48, Color.WHITE), flat(31, 17, Color.BLACK)};
+        for (BufferedImage image : images) {
+            DctJpegEncoder.Prepared prepared = DctJpegEncoder.prepare(image);
+            for (float q = 0.2f; q <= 0.951f; q += 0.03f) {
+                assertThat(prepared.encodedSize(q, 200)).as("%dx%d q=%.2f", image.getWidth(), image.getHeight(), q)
+                    .isEqualTo(prepared.encode(q, 200).length);
+            }
+        }
+    }
+
+    @Test
+    void headerMatchesImageIoOutput() throws IOException {
+        BufferedImage source = photo(250, 190, 4);
+        DctJpegEncoder.Prepared prepared = DctJpegEncoder.prepare(source);
+        for (int dpi : new int[]{72, 96, 200, 300}) {
+            for (float q : new float[]{0.3f, 0.75f, 0.95f}) {
+                byte[] ours = prepared.encode(q, dpi);
+                byte[] imageIo = ImageUtils.writeJpegWithQualityAndDpi(source, q, dpi);
+                int end = headerEnd(ours);
+                assertThat(headerEnd(imageIo)).isEqualTo(end);
+                assertThat(Arrays.copyOf(ours, end)).as("dpi=%d q=%.2f", dpi, q).isEqualTo(Arrays.copyOf(imageIo, end));
+                assertThat(jfifDensity(ours)).isEqualTo(dpi);
+            }
+        }
+    }
+
+    // offset just past the SOS segment, where entropy-coded data starts
+    private static int headerEnd(byte[] jpeg) {
+        int i = 2;
+        while (i + 4 <= jpeg.length) {
+            assertThat(jpeg[i] & 0xff).isEqualTo(0xFF);
+            int marker = jpeg[i + 1] & 0xff;
+            int length = ((jpeg[i + 2] & 0xff) << 8) | (jpeg[i + 3] & 0xff);
+            i += 2 + length;
+            if (marker == 0xDA) {
+                return i;
+            }
+        }
+        throw new AssertionError("no SOS marker");
+    }
+
+    private static int jfifDensity(byte[] jpeg) {
+        assertThat(jpeg[2] & 0xff).isEqualTo(0xFF);
+        assertThat(jpeg[3] & 0xff).isEqualTo(0xE0);
+        assertThat(new String(jpeg, 6, 4, StandardCharsets.US_ASCII)).isEqualTo("JFIF");
+        assertThat(jpeg[13]).isEqualTo((byte) 1);
+        int x = ((jpeg[14] & 0xff) << 8) | (jpeg[15] & 0xff);
+        int y = ((jpeg[16] & 0xff) << 8) | (jpeg[17] & 0xff);
+        assertThat(y).isEqualTo(x);
+        return x;
+    }
+
+    private static double psnr(BufferedImage a, BufferedImage b) {
+        int w = a.getWidth();
+        int h = a.getHeight();
+        int[] pa = a.getRGB(0, 0, w, h, null, 0, w);
+        int[] pb = b.getRGB(0, 0, w, h, null, 0, w);
+        double sum = 0;
+        for (int i = 0; i < pa.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int d = ((pa[i] >> shift) & 0xff) - ((pb[i] >> shift) & 0xff);
+                sum += d * d;
+            }
+        }
+        double mse = sum / (pa.length * 3.0);
+        return 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    private static BufferedImage photo(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, new Color(220, 180, 150), w, h, new Color(40, 70, 150)));
+        g.fillRect(0, 0, w, h);
+        for (int i = 0; i < 25; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 170));
+            g.fillOval(random.nextInt(w), random.nextInt(h), 5 + random.nextInt(w / 2 + 1), 5 + random.nextInt(h / 2 + 1));
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage noise(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage flat(int w, int h, Color color) {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, w, h);
+        g.dispose();
+        return image;
+    }
+}
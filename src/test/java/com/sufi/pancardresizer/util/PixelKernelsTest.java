@@ -0,0 +1,286 @@
+package com.sufi.pancardresizer.util;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PixelKernelsTest {
+    private static final int[] IMAGE_TYPES = {
+        BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_BYTE_GRAY
+    };
+
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void blackAndWhiteMatchesGetRgbVersion() {
+        for (BufferedImage image : samples()) {
+            assertSamePixels(PixelKernels.toBlackAndWhite(image), referenceBlackAndWhite(image));
+        }
+    }
+
+    @Test
+    void blackAndWhiteMatchesGetRgbVersionInBands() {
+        BufferedImage image = noise(BufferedImage.TYPE_INT_RGB, 1200, 1000, 7);
+        assertSamePixels(PixelKernels.toBlackAndWhite(image, pool), referenceBlackAndWhite(image));
+    }
+
+    @Test
+    void blackAndWhiteMatchesOnTheLuminanceThreshold() {
+        BufferedImage image = thresholdColours();
+        assertSamePixels(PixelKernels.toBlackAndWhite(image), referenceBlackAndWhite(image));
+    }
+
+    @Test
+    void vectorKernelsOnlyLoadWithTheirModule() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            assertThat(PixelKernels.vectorKernels()).isNull();
+        }
+    }
+
+    @Test
+    void interruptedBandedCallKeepsItsFlag() {
+        BufferedImage image = noise(BufferedImage.TYPE_INT_RGB, 1200, 1000, 8);
+        Thread.currentThread().interrupt();
+        try {
+            assertThatThrownBy(() -> PixelKernels.toBlackAndWhite(image, pool)).isInstanceOf(CancellationException.class);
+            assertThat(Thread.currentThread().isInterrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    void contentBoundsMatchGetRgbVersion() {
+        for (BufferedImage image : samples()) {
+            assertThat(PixelKernels.contentBounds(image, 245)).isEqualTo(referenceContentBounds(image, 245));
+        }
+    }
+
+    @Test
+    void contentBoundsMatchInBands() {
+        BufferedImage image = framed(BufferedImage.TYPE_INT_RGB, 1300, 1100, new Rectangle(17, 211, 1001, 777));
+        assertThat(PixelKernels.contentBounds(image, 245, pool)).isEqualTo(referenceContentBounds(image, 245));
+    }
+
+    @Test
+    void contentBoundsTreatThresholdChannelsAsWhite() {
+        BufferedImage image = blank(BufferedImage.TYPE_INT_RGB, 40, 30);
+        image.setRGB(5, 4, 0xF5F5F5);
+        image.setRGB(30, 20, 0xF5F5F5);
+        assertThat(PixelKernels.contentBounds(image, 245)).isNull();
+        assertThat(referenceContentBounds(image, 245)).isNull();
+
+        image.setRGB(7, 9, 0xF5F4F5);
+        image.setRGB(22, 25, 0xF4F5F5);
+        assertThat(PixelKernels.contentBounds(image, 245)).isEqualTo(new Rectangle(7, 9, 16, 17));
+        assertThat(PixelKernels.contentBounds(image, 245)).isEqualTo(referenceContentBounds(image, 245));
+    }
+
+    @Test
+    void splitBlackMatchesGetRgbVersion() {
+        for (BufferedImage image : samples()) {
+            Rectangle region = new Rectangle(3, 5, image.getWidth() - 9, image.getHeight() - 11);
+            assertSameSplit(PixelKernels.splitBlack(image, region, 24), referenceSplitBlack(image.getSubimage(region.x, region.y, region.width, region.height), 24));
+        }
+    }
+
+    @Test
+    void splitBlackMatchesInBands() {
+        BufferedImage image = noise(BufferedImage.TYPE_3BYTE_BGR, 1200, 1000, 11);
+        Rectangle region = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        assertSameSplit(PixelKernels.splitBlack(image, region, 24, pool), referenceSplitBlack(image, 24));
+    }
+
+    @Test
+    void splitBlackMatchesOnTheBlackThreshold() {
+        BufferedImage image = blank(BufferedImage.TYPE_INT_RGB, 8, 1);
+        int[] colours = {0x181818, 0x191818, 0x181918, 0x181819, 0x000000, 0x191919, 0x0A1800, 0xFFFFFF};
+        for (int x = 0; x < colours.length; x++) {
+            image.setRGB(x, 0, colours[x]);
+        }
+        PixelKernels.BlackSplit split = PixelKernels.splitBlack(image, new Rectangle(0, 0, 8, 1), 24);
+        assertSameSplit(split, referenceSplitBlack(image, 24));
+        assertThat(split.getMask().getRGB(0, 0)).isEqualTo(0xFF000000);
+        assertThat(split.getMask().getRGB(1, 0)).isZero();
+    }
+
+    private static List<BufferedImage> samples() {
+        List<BufferedImage> images = new ArrayList<>();
+        for (int type : IMAGE_TYPES) {
+            images.add(noise(type, 67, 41, type));
+            images.add(framed(type, 90, 70, new Rectangle(13, 9, 50, 31)));
+            images.add(blank(type, 33, 17));
+            // sub-images read through a translated raster and a wider scanline stride
+            BufferedImage parent = noise(type, 120, 90, 31 * type);
+            images.add(parent.getSubimage(21, 13, 77, 59));
+            images.add(framed(type, 140, 100, new Rectangle(40, 30, 30, 20)).getSubimage(30, 20, 60, 50));
+        }
+        return images;
+    }
+
+    private static BufferedImage noise(int type, int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, type);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int pick = random.nextInt(4);
+                int rgb = switch (pick) {
+                    case 0 -> random.nextInt(0x1000000);
+                    case 1 -> random.nextInt(26) * 0x010101;
+                    case 2 -> (240 + random.nextInt(16)) * 0x010101;
+                    default -> 0xFFFFFF;
+                };
+                image.setRGB(x, y, 0xFF000000 | rgb);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage framed(int type, int w, int h, Rectangle content) {
+        BufferedImage image = blank(type, w, h);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(30, 90, 200));
+        g.fillRect(content.x, content.y, content.width, content.height);
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage blank(int type, int w, int h) {
+        BufferedImage image = new BufferedImage(w, h, type);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, w, h);
+        g.dispose();
+        return image;
+    }
+
+    // every colour whose integer luminance lands next to 160, where float rounding decides the result
+    private static BufferedImage thresholdColours() {
+        List<Integer> colours = new ArrayList<>();
+        for (int r = 0; r < 256; r++) {
+            for (int g = 0; g < 256; g++) {
+                int rest = 160_000 - 299 * r - 587 * g;
+                for (int b = rest / 114 - 1; b <= rest / 114 + 1; b++) {
+                    if (b >= 0 && b < 256) {
+                        colours.add((r << 16) | (g << 8) | b);
+                    }
+                }
+            }
+        }
+        int w = 256;
+        int h = (colours.size() + w - 1) / w;
+        BufferedImage image = blank(BufferedImage.TYPE_INT_RGB, w, h);
+        for (int i = 0; i < colours.size(); i++) {
+            image.setRGB(i % w, i / w, colours.get(i));
+        }
+        return image;
+    }
+
+    private static void assertSamePixels(BufferedImage actual, BufferedImage expected) {
+        assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+        assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+        int w = expected.getWidth();
+        int h = expected.getHeight();
+        assertThat(actual.getRGB(0, 0, w, h, null, 0, w)).isEqualTo(expected.getRGB(0, 0, w, h, null, 0, w));
+    }
+
+    private static void assertSameSplit(PixelKernels.BlackSplit actual, Split expected) {
+        assertThat(actual.hasMask()).isEqualTo(expected.hasMask());
+        assertSamePixels(actual.getBase(), expected.base());
+        assertSamePixels(actual.getMask(), expected.mask());
+    }
+
+    private static BufferedImage referenceBlackAndWhite(BufferedImage src) {
+        BufferedImage bw = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < src.getHeight(); y++) {
+            for (int x = 0; x < src.getWidth(); x++) {
+                int rgb = src.getRGB(x, y);
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                int lum = (int) (0.299 * r + 0.587 * g + 0.114 * b);
+                int val = lum < 160 ? 0 : 255;
+                bw.setRGB(x, y, (val << 16) | (val << 8) | val);
+            }
+        }
+        return bw;
+    }
+
+    private static Rectangle referenceContentBounds(BufferedImage src, int threshold) {
+        int minX = src.getWidth();
+        int minY = src.getHeight();
+        int maxX = -1;
+        int maxY = -1;
+        for (int y = 0; y < src.getHeight(); y++) {
+            for (int x = 0; x < src.getWidth(); x++) {
+                int rgb = src.getRGB(x, y);
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                if (r < threshold || g < threshold || b < threshold) {
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        if (maxX < minX || maxY < minY) {
+            return null;
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    private static Split referenceSplitBlack(BufferedImage src, int blackThreshold) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        BufferedImage base = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        BufferedImage mask = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        boolean hasMask = false;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int rgb = src.getRGB(x, y);
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                if (r <= blackThreshold && g <= blackThreshold && b <= blackThreshold) {
+                    base.setRGB(x, y, 0xFFFFFF);
+                    mask.setRGB(x, y, 0xFF000000);
+                    hasMask = true;
+                } else {
+                    base.setRGB(x, y, rgb & 0xFFFFFF);
+                    mask.setRGB(x, y, 0x00000000);
+                }
+            }
+        }
+        return new Split(base, mask, hasMask);
+    }
+
+    private record Split(BufferedImage base, BufferedImage mask, boolean hasMask) {
+    }
+}
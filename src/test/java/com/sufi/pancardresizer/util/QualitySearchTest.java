@@ -0,0 +1,123 @@
+package com.sufi.pancardresizer.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class QualitySearchTest {
+    private ForkJoinPool pool;
+
+    @BeforeEach
+    void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void parallelSearchMatchesSequentialOnModelCurves() throws IOException {
+        for (double slope : new double[]{1.5, 2.4, 3.5}) {
+            for (int base = 5000; base < 400000; base = base * 3 / 2) {
+                for (int maxBytes : new int[]{20000, 50000, 100000, 300000}) {
+                    JpegProbe probe = curve(base, slope);
+                    QualitySearch.Result sequential = QualitySearch.search(probe, maxBytes, 8);
+                    QualitySearch.Result parallel = QualitySearch.searchParallel(probe, maxBytes, 8, pool);
+                    assertSame(sequential, parallel, "slope %.1f base %d max %d", slope, base, maxBytes);
+                }
+            }
+        }
+    }
+
+    @Test
+    void parallelSearchMatchesSequentialOnRealEncodes() throws IOException {
+        BufferedImage image = photo(640, 480, 7);
+        for (int maxBytes = 15000; maxBytes < 300000; maxBytes = maxBytes * 3 / 2) {
+            QualitySearch.Result sequential = QualitySearch.search(JpegProbe.imageIo(image, 200, maxBytes), maxBytes, 8);
+            QualitySearch.Result parallel = QualitySearch.searchParallel(JpegProbe.imageIo(image, 200, maxBytes), maxBytes, 8, pool);
+            assertSame(sequential, parallel, "max %d", maxBytes);
+            if (sequential.fits()) {
+                assertThat(parallel.getData().length).isLessThanOrEqualTo(maxBytes);
+            }
+        }
+    }
+
+    @Test
+    void saturatedPoolFallsBackToSequentialSearch() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(pool.getParallelism());
+        for (int i = 0; i < pool.getParallelism(); i++) {
+            pool.execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        try {
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+            JpegProbe probe = curve(40000, 2.4);
+            QualitySearch.Result sequential = QualitySearch.search(probe, 100000, 8);
+            // every worker is blocked, so anything submitted to the pool would hang until release
+            QualitySearch.Result parallel = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> QualitySearch.searchParallel(probe, 100000, 8, pool));
+            assertSame(sequential, parallel, "saturated");
+            assertThat(parallel.getEncodes()).isEqualTo(sequential.getEncodes());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static void assertSame(QualitySearch.Result expected, QualitySearch.Result actual, String description, Object... args) {
+        assertThat(actual.getQuality()).as(description, args).isEqualTo(expected.getQuality());
+        assertThat(actual.getData().length).as(description, args).isEqualTo(expected.getData().length);
+        assertThat(actual.fits()).as(description, args).isEqualTo(expected.fits());
+    }
+
+    private static JpegProbe curve(int base, double slope) {
+        return new JpegProbe() {
+            @Override
+            public int size(float quality) {
+                return (int) (base * Math.exp(slope * quality));
+            }
+
+            @Override
+            public byte[] encode(float quality) {
+                return new byte[size(quality)];
+            }
+        };
+    }
+
+    private static BufferedImage photo(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(220, 180, 150), w, h, new Color(40, 70, 150)));
+        g.fillRect(0, 0, w, h);
+        for (int i = 0; i < 120; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 150));
+            g.fillOval(random.nextInt(w), random.nextInt(h), 5 + random.nextInt(w / 4), 5 + random.nextInt(h / 4));
+        }
+        g.dispose();
+        for (int i = 0; i < 8000; i++) {
+            image.setRGB(random.nextInt(w), random.nextInt(h), random.nextInt(0x1000000));
+        }
+        return image;
+    }
+}
@@ -0,0 +1,197 @@
+package com.sufi.pancardresizer.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RegionDecoderTest {
+    private static final int W = 601;
+    private static final int H = 437;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void croppedPlanMatchesFullDecode() throws IOException {
+        for (String format : new String[]{"png", "jpeg"}) {
+            Path path = write(photo(W, H, 1), format);
+            BufferedImage full = ImageIO.read(path.toFile());
+            Rectangle[] crops = {
+                new Rectangle(37, 51, 300, 200),
+                new Rectangle(0, 0, W, H),
+                // hanging over the right and bottom edges, and starting before the left one
+                new Rectangle(450, 300, 400, 400),
+                new Rectangle(-20, 10, 120, 90)
+            };
+            for (Rectangle crop : crops) {
+                RegionDecoder.Plan plan = RegionDecoder.plan(W, H, 0, crop, 4000, 4000);
+                BufferedImage region = RegionDecoder.render(RegionDecoder.read(path, plan), plan);
+                Rectangle view = plan.getView();
+                BufferedImage expected = ImageUtils.crop(full, Math.max(0, crop.x), Math.max(0, crop.y), view.width, view.height);
+                assertThat(pixels(region)).as("%s crop %s", format, crop).isEqualTo(pixels(expected));
+            }
+        }
+    }
+
+    @Test
+    void subsampledPlanReadsEverySubsampledPixel() throws IOException {
+        for (String format : new String[]{"png", "jpeg"}) {
+            Path path = write(photo(W, H, 2), format);
+            BufferedImage full = ImageIO.read(path.toFile());
+            Rectangle crop = new Rectangle(13, 7, 577, 421);
+            int[] limits = {400, 200, 97, 30};
+            for (int limit : limits) {
+                double fit = Math.min((double) limit / crop.width, (double) limit / crop.height);
+                int s = Math.max(1, (int) Math.floor(1.0 / fit));
+                RegionDecoder.Plan plan = RegionDecoder.plan(W, H, 0, crop, limit, limit);
+                BufferedImage region = RegionDecoder.render(RegionDecoder.read(path, plan), plan);
+
+                assertThat(region.getWidth()).isEqualTo((crop.width + s - 1) / s);
+                assertThat(region.getHeight()).isEqualTo((crop.height + s - 1) / s);
+                for (int y = 0; y < region.getHeight(); y++) {
+                    for (int x = 0; x < region.getWidth(); x++) {
+                        int expected = full.getRGB(crop.x + x * s, crop.y + y * s);
+                        assertThat(region.getRGB(x, y)).as("%s limit %d at %d,%d", format, limit, x, y).isEqualTo(expected);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void rightAngleRotationsMatchFullDecodeThenTransform() throws IOException {
+        Path path = write(photo(W, H, 3), "png");
+        BufferedImage full = ImageIO.read(path.toFile());
+        for (int degrees : new int[]{90, 180, 270, -90}) {
+            ImageTransform transform = ImageTransform.of(W, H).rotate(degrees).crop(new Rectangle(31, 17, 250, 190));
+            RegionDecoder.Plan plan = RegionDecoder.plan(transform);
+            BufferedImage region = RegionDecoder.renderOutput(RegionDecoder.read(path, plan), plan);
+            assertThat(pixels(region)).as("rotate %d", degrees).isEqualTo(pixels(transform.render(full)));
+        }
+    }
+
+    @Test
+    void arbitraryRotationsStayCloseToFullDecodeThenTransform() throws IOException {
+        Path path = write(photo(W, H, 4), "png");
+        BufferedImage full = ImageIO.read(path.toFile());
+        for (int degrees : new int[]{17, -30, 45, 359}) {
+            Rectangle crop = new Rectangle(40, 60, 300, 250);
+            ImageTransform transform = ImageTransform.of(W, H).rotate(degrees).crop(crop);
+            RegionDecoder.Plan plan = RegionDecoder.plan(transform);
+            BufferedImage region = RegionDecoder.renderOutput(RegionDecoder.read(path, plan), plan);
+            BufferedImage expected = transform.render(full);
+            assertThat(region.getWidth()).isEqualTo(expected.getWidth());
+            assertThat(region.getHeight()).isEqualTo(expected.getHeight());
+            assertThat(meanAbsDiff(region, expected)).as("rotate %d", degrees).isLessThan(0.1);
+
+            // the size estimate renders either the cached full image or a region decode; both must agree
+            RegionDecoder.Plan sized = RegionDecoder.plan(W, H, degrees, crop, 120, 120);
+            BufferedImage fromRegion = RegionDecoder.render(RegionDecoder.read(path, sized), sized);
+            BufferedImage fromFull = RegionDecoder.render(full, sized.fromFullImage());
+            assertThat(fromRegion.getWidth()).isEqualTo(fromFull.getWidth());
+            assertThat(fromRegion.getHeight()).isEqualTo(fromFull.getHeight());
+            assertThat(meanAbsDiff(fromRegion, fromFull)).as("sized rotate %d", degrees).isLessThan(3);
+        }
+    }
+
+    @Test
+    void subsampledOutputStaysCloseToFullDecodeThenTransform() throws IOException {
+        Path path = write(photo(2400, 1800, 5), "jpeg");
+        BufferedImage full = ImageIO.read(path.toFile());
+        for (int degrees : new int[]{0, 90, 12}) {
+            ImageTransform transform = ImageTransform.of(2400, 1800).rotate(degrees)
+                .crop(new Rectangle(101, 99, 1700, 1300)).fit(320, 320);
+            RegionDecoder.Plan plan = RegionDecoder.plan(transform);
+            BufferedImage region = RegionDecoder.renderOutput(RegionDecoder.read(path, plan), plan);
+            BufferedImage expected = transform.render(full);
+            assertThat(region.getWidth()).isEqualTo(expected.getWidth());
+            assertThat(region.getHeight()).isEqualTo(expected.getHeight());
+            assertThat(meanAbsDiff(region, expected)).as("rotate %d", degrees).isLessThan(2);
+        }
+    }
+
+    @Test
+    void exifOrientationIsIgnoredLikeTheFullDecode() throws IOException {
+        // ImageIO does not apply EXIF orientation; the region path must see the same raster as the full decode
+        Path plain = write(photo(W, H, 6), "jpeg");
+        Path path = dir.resolve("rotated-exif.jpg");
+        Files.write(path, withExifOrientation(Files.readAllBytes(plain), 6));
+        BufferedImage full = ImageIO.read(path.toFile());
+        ImageProbe.Result probe = ImageProbe.probe(path);
+        assertThat(probe.getWidth()).isEqualTo(full.getWidth());
+        assertThat(probe.getHeight()).isEqualTo(full.getHeight());
+
+        RegionDecoder.Plan plan = RegionDecoder.plan(W, H, 0, new Rectangle(50, 40, 200, 150), 4000, 4000);
+        BufferedImage region = RegionDecoder.render(RegionDecoder.read(path, plan), plan);
+        assertThat(pixels(region)).isEqualTo(pixels(ImageUtils.crop(full, 50, 40, 200, 150)));
+    }
+
+    private Path write(BufferedImage image, String format) throws IOException {
+        Path path = dir.resolve("source-" + image.hashCode() + "." + format);
+        assertThat(ImageIO.write(image, format, path.toFile())).isTrue();
+        return path;
+    }
+
+    // inserts a minimal APP1 Exif segment with one Orientation entry right after SOI
+    private static byte[] withExifOrientation(byte[] jpeg, int orientation) {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        tiff.writeBytes(new byte[]{'M', 'M', 0, 42, 0, 0, 0, 8});
+        tiff.writeBytes(new byte[]{0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0});
+        tiff.writeBytes(new byte[]{0, 0, 0, 0});
+        byte[] header = "Exif\0\0".getBytes(StandardCharsets.ISO_8859_1);
+        int length = 2 + header.length + tiff.size();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        out.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length});
+        out.writeBytes(header);
+        out.writeBytes(tiff.toByteArray());
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage photo(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(230, 190, 150), w, h, new Color(30, 60, 140)));
+        g.fillRect(0, 0, w, h);
+        for (int i = 0; i < 40; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillRect(random.nextInt(w), random.nextInt(h), 10 + random.nextInt(w / 4), 10 + random.nextInt(h / 4));
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] &= 0xFFFFFF;
+        }
+        return pixels;
+    }
+
+    private static double meanAbsDiff(BufferedImage a, BufferedImage b) {
+        int[] pa = pixels(a);
+        int[] pb = pixels(b);
+        long sum = 0;
+        for (int i = 0; i < pa.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                sum += Math.abs(((pa[i] >> shift) & 0xff) - ((pb[i] >> shift) & 0xff));
+            }
+        }
+        return (double) sum / (pa.length * 3L);
+    }
+}
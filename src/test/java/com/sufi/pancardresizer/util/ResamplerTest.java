@@ -0,0 +1,229 @@
+package com.sufi.pancardresizer.util;
+
+import net.coobird.thumbnailator.Thumbnails;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResamplerTest {
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void integerReductionIsTheExactBoxAverage() {
+        BufferedImage src = noise(120, 90, 1);
+        BufferedImage out = Resampler.resample(src, 40, 30, Resampler.Filter.AREA);
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 40; x++) {
+                int expected = boxAverage(src, x * 3, y * 3, 3);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int actual = (out.getRGB(x, y) >> shift) & 0xff;
+                    assertThat(Math.abs(actual - ((expected >> shift) & 0xff))).isLessThanOrEqualTo(1);
+                }
+            }
+        }
+    }
+
+    @Test
+    void flatColourStaysFlat() {
+        BufferedImage src = new BufferedImage(1001, 777, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = src.createGraphics();
+        g.setColor(new Color(12, 200, 99));
+        g.fillRect(0, 0, src.getWidth(), src.getHeight());
+        g.dispose();
+        int[][] sizes = {{213, 167}, {700, 600}, {1500, 1100}};
+        for (Resampler.Filter filter : Resampler.Filter.values()) {
+            for (int[] size : sizes) {
+                BufferedImage out = Resampler.resample(src, size[0], size[1], filter);
+                for (int y = 0; y < out.getHeight(); y++) {
+                    for (int x = 0; x < out.getWidth(); x++) {
+                        assertThat(out.getRGB(x, y) & 0xFFFFFF).as("%s at %dx%d", filter, size[0], size[1]).isEqualTo(0x0CC863);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void bilinearEnlargementInterpolatesBetweenPixelCentres() {
+        BufferedImage src = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        src.setRGB(0, 0, 0x000000);
+        src.setRGB(1, 0, 0xFFFFFF);
+        BufferedImage out = Resampler.resample(src, 4, 1, Resampler.Filter.BILINEAR);
+        int[] expected = {0, 64, 191, 255};
+        for (int x = 0; x < 4; x++) {
+            assertThat(out.getRGB(x, 0) & 0xff).isEqualTo(expected[x]);
+        }
+    }
+
+    @Test
+    void lanczosKeepsEdgesSharperThanAreaOnMildReductions() {
+        // a one-pixel grid reduced by a non-integer factor: Lanczos keeps more of its contrast
+        BufferedImage src = new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 400; y++) {
+            for (int x = 0; x < 400; x++) {
+                src.setRGB(x, y, (x / 8 + y / 8) % 2 == 0 ? 0x000000 : 0xFFFFFF);
+            }
+        }
+        double area = contrast(Resampler.resample(src, 290, 290, Resampler.Filter.AREA));
+        double bilinear = contrast(Resampler.resample(src, 290, 290, Resampler.Filter.BILINEAR));
+        double lanczos = contrast(Resampler.resample(src, 290, 290, Resampler.Filter.LANCZOS));
+        assertThat(lanczos).isGreaterThan(area).isGreaterThan(bilinear);
+    }
+
+    @Test
+    void regionMatchesResamplingACopyOfIt() {
+        BufferedImage src = photo(900, 700, 5);
+        Rectangle region = new Rectangle(130, 85, 611, 477);
+        BufferedImage copy = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(src.getSubimage(region.x, region.y, region.width, region.height), 0, 0, null);
+        g.dispose();
+        for (Resampler.Filter filter : Resampler.Filter.values()) {
+            int[] expected = pixels(Resampler.resample(copy, 250, 190, filter));
+            int[] actual = pixels(Resampler.resample(src, region, 250, 190, filter, pool));
+            assertThat(actual).as("%s", filter).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void filterFollowsTheScale() {
+        assertThat(Resampler.Filter.forScale(0.5, 0.25)).isEqualTo(Resampler.Filter.AREA);
+        assertThat(Resampler.Filter.forScale(0.5, 0.6)).isEqualTo(Resampler.Filter.LANCZOS);
+        assertThat(Resampler.Filter.forScale(0.9, 1.0)).isEqualTo(Resampler.Filter.LANCZOS);
+        assertThat(Resampler.Filter.forScale(0.9, 1.2)).isEqualTo(Resampler.Filter.BILINEAR);
+    }
+
+    @Test
+    void bandedOutputMatchesSingleThreaded() {
+        BufferedImage src = photo(3000, 2400, 2);
+        for (Resampler.Filter filter : Resampler.Filter.values()) {
+            int[] single = pixels(Resampler.resample(src, 1100, 900, filter));
+            int[] banded = pixels(Resampler.resample(src, 1100, 900, filter, pool));
+            assertThat(banded).as("%s", filter).isEqualTo(single);
+        }
+    }
+
+    @Test
+    void staysCloseToThumbnailator() throws IOException {
+        BufferedImage src = photo(3000, 4000, 3);
+        int[][] sizes = {{213, 213}, {350, 150}, {1000, 1333}, {2100, 2800}, {2700, 3600}, {4500, 6000}};
+        for (int[] size : sizes) {
+            Resampler.Filter filter = Resampler.Filter.forScale(size[0] / 3000.0, size[1] / 4000.0);
+            BufferedImage ours = Resampler.resample(src, size[0], size[1], filter);
+            BufferedImage old = Thumbnails.of(src).size(size[0], size[1]).keepAspectRatio(false).asBufferedImage();
+            assertThat(meanAbsDiff(ours, old)).as("%s mean abs diff at %dx%d", filter, size[0], size[1]).isLessThan(1.5);
+        }
+    }
+
+    // mvn test -Dtest=ResamplerTest -Dresampler.benchmark=true
+    @Test
+    @EnabledIfSystemProperty(named = "resampler.benchmark", matches = "true")
+    void benchmarkAgainstThumbnailator() throws IOException {
+        BufferedImage src = photo(3000, 4000, 4);
+        int[][] sizes = {{213, 213}, {350, 150}, {1500, 2000}, {2100, 2800}, {4500, 6000}};
+        for (int pass = 0; pass < 4; pass++) {
+            for (int[] size : sizes) {
+                Resampler.Filter filter = Resampler.Filter.forScale(size[0] / 3000.0, size[1] / 4000.0);
+                long start = System.nanoTime();
+                BufferedImage ours = Resampler.resample(src, size[0], size[1], filter);
+                long resampler = System.nanoTime() - start;
+                start = System.nanoTime();
+                BufferedImage old = Thumbnails.of(src).size(size[0], size[1]).keepAspectRatio(false).asBufferedImage();
+                long thumbnailator = System.nanoTime() - start;
+                System.out.printf("pass %d %dx%d %s: resampler %.1f ms, thumbnailator %.1f ms, mean abs diff %.2f/255%n",
+                    pass, size[0], size[1], filter, resampler / 1e6, thumbnailator / 1e6, meanAbsDiff(ours, old));
+            }
+        }
+    }
+
+    private static BufferedImage noise(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+
+    // smooth gradients and soft-edged shapes, roughly what an uploaded photo looks like
+    private static BufferedImage photo(int w, int h, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, new Color(210, 170, 140), w, h, new Color(40, 70, 150)));
+        g.fillRect(0, 0, w, h);
+        for (int i = 0; i < 60; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 160));
+            g.fillOval(random.nextInt(w), random.nextInt(h), 100 + random.nextInt(600), 100 + random.nextInt(600));
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static int boxAverage(BufferedImage src, int x0, int y0, int n) {
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        for (int y = y0; y < y0 + n; y++) {
+            for (int x = x0; x < x0 + n; x++) {
+                int rgb = src.getRGB(x, y);
+                r += (rgb >> 16) & 0xff;
+                g += (rgb >> 8) & 0xff;
+                b += rgb & 0xff;
+            }
+        }
+        int count = n * n;
+        return (Math.round((float) r / count) << 16) | (Math.round((float) g / count) << 8) | Math.round((float) b / count);
+    }
+
+    // mean absolute difference between horizontal neighbours
+    private static double contrast(BufferedImage image) {
+        int[] p = pixels(image);
+        int w = image.getWidth();
+        long sum = 0;
+        for (int i = 0; i < p.length; i++) {
+            if (i % w != 0) {
+                sum += Math.abs((p[i] & 0xff) - (p[i - 1] & 0xff));
+            }
+        }
+        return (double) sum / p.length;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private static double meanAbsDiff(BufferedImage a, BufferedImage b) {
+        int[] pa = pixels(a);
+        int[] pb = pixels(b);
+        long sum = 0;
+        for (int i = 0; i < pa.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                sum += Math.abs(((pa[i] >> shift) & 0xff) - ((pb[i] >> shift) & 0xff));
+            }
+        }
+        return (double) sum / (pa.length * 3L);
+    }
+}
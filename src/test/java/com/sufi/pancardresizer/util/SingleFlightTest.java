@@ -0,0 +1,188 @@
+package com.sufi.pancardresizer.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SingleFlightTest {
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private final SingleFlight<String, Object> flights = new SingleFlight<>();
+
+    @AfterEach
+    void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    void waitersShareTheLeadersResult() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        Object value = new Object();
+        Future<Object> leader = threads.submit(() -> flights.execute("key", () -> {
+            runs.incrementAndGet();
+            await(release);
+            return value;
+        }));
+        awaitRuns(runs, 1);
+        List<Future<Object>> waiters = joinWaiters("key", 4, () -> {
+            runs.incrementAndGet();
+            return new Object();
+        });
+
+        release.countDown();
+        assertThat(leader.get(5, TimeUnit.SECONDS)).isSameAs(value);
+        for (Future<Object> waiter : waiters) {
+            assertThat(waiter.get(5, TimeUnit.SECONDS)).isSameAs(value);
+        }
+        assertThat(runs).hasValue(1);
+
+        // a finished flight is not remembered
+        assertThat(flights.execute("key", () -> "again")).isEqualTo("again");
+    }
+
+    @Test
+    void failuresReachEveryWaiter() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        IllegalStateException failure = new IllegalStateException("render failed");
+        Future<Object> leader = threads.submit(() -> flights.execute("key", () -> {
+            runs.incrementAndGet();
+            await(release);
+            throw failure;
+        }));
+        awaitRuns(runs, 1);
+        List<Future<Object>> waiters = joinWaiters("key", 3, () -> {
+            runs.incrementAndGet();
+            return "unexpected";
+        });
+
+        release.countDown();
+        assertThatThrownBy(() -> leader.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class).hasCause(failure);
+        for (Future<Object> waiter : waiters) {
+            assertThatThrownBy(() -> waiter.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class).hasCause(failure);
+        }
+        assertThat(runs).hasValue(1);
+    }
+
+    @Test
+    void waiterTakesOverWhenTheLeaderIsInterrupted() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        AtomicReference<Thread> leaderThread = new AtomicReference<>();
+        AtomicReference<Boolean> leaderInterrupted = new AtomicReference<>();
+        Future<Object> leader = threads.submit(() -> {
+            leaderThread.set(Thread.currentThread());
+            try {
+                return flights.execute("key", () -> {
+                    runs.incrementAndGet();
+                    // blocks until interrupted, then fails the way the util code does
+                    await(new CountDownLatch(1));
+                    return "leader";
+                });
+            } finally {
+                leaderInterrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        awaitRuns(runs, 1);
+        List<Future<Object>> waiters = joinWaiters("key", 1, () -> {
+            runs.incrementAndGet();
+            return "waiter";
+        });
+
+        leaderThread.get().interrupt();
+        assertThatThrownBy(() -> leader.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(CancellationException.class);
+        assertThat(leaderInterrupted.get()).isTrue();
+        assertThat(waiters.get(0).get(5, TimeUnit.SECONDS)).isEqualTo("waiter");
+        assertThat(runs).hasValue(2);
+    }
+
+    @Test
+    void interruptedWaiterStopsWaitingAndKeepsItsFlag() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        Future<Object> leader = threads.submit(() -> flights.execute("key", () -> {
+            runs.incrementAndGet();
+            await(release);
+            return "leader";
+        }));
+        awaitRuns(runs, 1);
+
+        AtomicReference<Thread> waiterThread = new AtomicReference<>();
+        AtomicReference<Boolean> waiterInterrupted = new AtomicReference<>();
+        Future<Object> waiter = threads.submit(() -> {
+            waiterThread.set(Thread.currentThread());
+            try {
+                return flights.execute("key", () -> "unexpected");
+            } finally {
+                waiterInterrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        awaitWaiting(waiter, waiterThread);
+        waiterThread.get().interrupt();
+
+        assertThatThrownBy(() -> waiter.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(CancellationException.class);
+        assertThat(waiterInterrupted.get()).isTrue();
+        release.countDown();
+        assertThat(leader.get(5, TimeUnit.SECONDS)).isEqualTo("leader");
+        assertThat(runs).hasValue(1);
+    }
+
+    private List<Future<Object>> joinWaiters(String key, int count, Supplier<Object> work) throws InterruptedException {
+        List<Future<Object>> waiters = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            AtomicReference<Thread> thread = new AtomicReference<>();
+            Future<Object> waiter = threads.submit(() -> {
+                thread.set(Thread.currentThread());
+                return flights.execute(key, work);
+            });
+            awaitWaiting(waiter, thread);
+            waiters.add(waiter);
+        }
+        return waiters;
+    }
+
+    // a waiter parks on the leader's future; seeing it parked means it joined the flight
+    private static void awaitWaiting(Future<?> future, AtomicReference<Thread> thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            Thread t = thread.get();
+            if (t != null && t.getState() == Thread.State.WAITING) {
+                return;
+            }
+            assertThat(future.isDone()).as("waiter finished before joining").isFalse();
+            Thread.sleep(1);
+        }
+        throw new AssertionError("waiter never joined the flight");
+    }
+
+    private static void awaitRuns(AtomicInteger runs, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (runs.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(runs).hasValue(expected);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted");
+        }
+    }
+}
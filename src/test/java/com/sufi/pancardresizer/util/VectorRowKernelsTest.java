@@ -0,0 +1,151 @@
+package com.sufi.pancardresizer.util;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class VectorRowKernelsTest {
+    private static final int MAX_WIDTH = 75;
+
+    private static RowKernels kernels;
+
+    @BeforeAll
+    static void requireVectorSupport() {
+        assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(), "jdk.incubator.vector not added");
+        kernels = PixelKernels.vectorKernels();
+        assumeTrue(kernels != null, "no usable vector species");
+    }
+
+    @Test
+    void blackAndWhiteMatchesScalar() {
+        Random random = new Random(1);
+        for (int w = 0; w <= MAX_WIDTH; w++) {
+            for (int round = 0; round < 20; round++) {
+                int[] row = row(random, w);
+                int offset = random.nextInt(5);
+                int[] vector = new int[offset + w];
+                int[] scalar = new int[offset + w];
+                kernels.blackAndWhite(row, vector, offset, w);
+                PixelKernels.blackAndWhiteRow(row, scalar, offset, 0, w);
+                assertThat(vector).isEqualTo(scalar);
+            }
+        }
+    }
+
+    @Test
+    void blackAndWhiteMatchesScalarOnTheLuminanceThreshold() {
+        // every colour whose integer luminance is exactly the cut, where the float formula decides
+        int[] row = new int[4096];
+        int n = 0;
+        for (int r = 0; r < 256 && n < row.length; r++) {
+            for (int g = 0; g < 256 && n < row.length; g++) {
+                int rest = PixelKernels.BW_THRESHOLD_MILLI - 299 * r - 587 * g;
+                if (rest >= 0 && rest % 114 == 0 && rest / 114 < 256) {
+                    row[n++] = (r << 16) | (g << 8) | (rest / 114);
+                }
+            }
+        }
+        assertThat(n).isGreaterThan(0);
+        int[] vector = new int[n];
+        int[] scalar = new int[n];
+        kernels.blackAndWhite(row, vector, 0, n);
+        PixelKernels.blackAndWhiteRow(row, scalar, 0, 0, n);
+        assertThat(vector).isEqualTo(scalar);
+    }
+
+    @Test
+    void contentSearchMatchesScalar() {
+        Random random = new Random(2);
+        for (int w = 0; w <= MAX_WIDTH; w++) {
+            for (int round = 0; round < 20; round++) {
+                int[] row = new int[w];
+                Arrays.fill(row, 0xFFFFFF);
+                // zero, one or two content pixels, some of them right on the threshold
+                for (int i = random.nextInt(3); i > 0 && w > 0; i--) {
+                    row[random.nextInt(w)] = random.nextBoolean() ? 0xF4FFFF : 0xFFFFF4;
+                }
+                if (w > 0 && random.nextBoolean()) {
+                    row[random.nextInt(w)] = 0xF5F5F5;
+                }
+                int from = w == 0 ? 0 : random.nextInt(w);
+                int to = from + random.nextInt(w - from + 1);
+                assertThat(kernels.firstContent(row, from, to, 245))
+                    .isEqualTo(PixelKernels.firstContentScalar(row, from, to, 245));
+                assertThat(kernels.lastContent(row, from, to, 245))
+                    .isEqualTo(PixelKernels.lastContentScalar(row, from, to, 245));
+            }
+        }
+    }
+
+    @Test
+    void splitBlackMatchesScalar() {
+        Random random = new Random(3);
+        for (int w = 0; w <= MAX_WIDTH; w++) {
+            for (int round = 0; round < 20; round++) {
+                int[] row = row(random, w);
+                int offset = random.nextInt(5);
+                int[] vectorBase = new int[offset + w];
+                int[] vectorMask = new int[offset + w];
+                int[] scalarBase = new int[offset + w];
+                int[] scalarMask = new int[offset + w];
+                boolean vector = kernels.splitBlack(row, vectorBase, vectorMask, offset, w, 24);
+                boolean scalar = PixelKernels.splitBlackRow(row, scalarBase, scalarMask, offset, 0, w, 24);
+                assertThat(vector).isEqualTo(scalar);
+                assertThat(vectorBase).isEqualTo(scalarBase);
+                assertThat(vectorMask).isEqualTo(scalarMask);
+            }
+        }
+    }
+
+    // mvn test -Dtest=VectorRowKernelsTest -Dkernels.benchmark=true
+    @Test
+    @EnabledIfSystemProperty(named = "kernels.benchmark", matches = "true")
+    void benchmarkAgainstScalar() {
+        int w = 2480;
+        int rows = 3508;
+        Random random = new Random(4);
+        int[] row = row(random, w);
+        int[] out = new int[w];
+        int[] mask = new int[w];
+        int[] white = new int[w];
+        Arrays.fill(white, 0xFFFFFF);
+
+        for (int pass = 0; pass < 5; pass++) {
+            long scalarBw = time(rows, () -> PixelKernels.blackAndWhiteRow(row, out, 0, 0, w));
+            long vectorBw = time(rows, () -> kernels.blackAndWhite(row, out, 0, w));
+            long scalarSplit = time(rows, () -> PixelKernels.splitBlackRow(row, out, mask, 0, 0, w, 24));
+            long vectorSplit = time(rows, () -> kernels.splitBlack(row, out, mask, 0, w, 24));
+            long scalarScan = time(rows, () -> PixelKernels.firstContentScalar(white, 0, w, 245));
+            long vectorScan = time(rows, () -> kernels.firstContent(white, 0, w, 245));
+            System.out.printf("A4@300dpi pass %d: bw %.1f/%.1f ms, split %.1f/%.1f ms, blank-row scan %.1f/%.1f ms (scalar/vector)%n",
+                pass, scalarBw / 1e6, vectorBw / 1e6, scalarSplit / 1e6, vectorSplit / 1e6, scalarScan / 1e6, vectorScan / 1e6);
+        }
+    }
+
+    private static long time(int rows, Runnable kernel) {
+        long start = System.nanoTime();
+        for (int y = 0; y < rows; y++) {
+            kernel.run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static int[] row(Random random, int w) {
+        int[] row = new int[w];
+        for (int x = 0; x < w; x++) {
+            row[x] = switch (random.nextInt(4)) {
+                case 0 -> random.nextInt(0x1000000);
+                case 1 -> random.nextInt(26) * 0x010101;
+                case 2 -> 0x181818 + (random.nextInt(3) << (8 * random.nextInt(3)));
+                default -> 0xFFFFFF;
+            };
+        }
+        return row;
+    }
+}